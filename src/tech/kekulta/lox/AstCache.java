@@ -0,0 +1,659 @@
+package tech.kekulta.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Parsed scripts saved in a compact binary form, one file per script in
+// a cache directory, named by a hash of the script's source and of the
+// classes that parse and save it. A script that hasn't changed since it
+// was saved by the same build is loaded instead of being scanned and
+// parsed again. The directory is kept under LIMIT bytes by dropping the
+// files loaded least recently.
+//
+// Only what the Parser produces is saved. Fields filled in later, like
+// the Resolver's slots, start out empty as they would after parsing.
+//
+// A file holds a header, a table of the strings in the script, then the
+// statements, each node a tag followed by its fields. Counts, indices
+// and numbers are written as varints, and each token's line as the
+// difference from the one before it.
+class AstCache implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAGIC = 0x4c4f5841;
+    private static final long LIMIT = 64L << 20;
+    // The class files of the nodes and of everything that goes into
+    // making or saving them. Folded into every key, so a build that would
+    // parse or save a script any differently never reads what another
+    // one saved. Null if they can't be read, and nothing is cached then.
+    private static final byte[] SCHEMA = schema(Token.class,
+            TokenType.class, Scanner.class, TokenBuffer.class, Parser.class,
+            Expr.class, Stmt.class, AstCache.class);
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // Tags, in the order of the Visitor methods, with 0 for null.
+    private static final int CONDITIONAL = 1;
+    private static final int BINARY = 2;
+    private static final int GROUPING = 3;
+    private static final int LITERAL = 4;
+    private static final int UNARY = 5;
+    private static final int POSTFIX = 6;
+    private static final int VARIABLE = 7;
+    private static final int ASSIGN = 8;
+    private static final int LOGICAL = 9;
+
+    private static final int EXPRESSION = 1;
+    private static final int BREAK = 2;
+    private static final int CONTINUE = 3;
+    private static final int PRINT = 4;
+    private static final int VAR = 5;
+    private static final int BLOCK = 6;
+    private static final int IF = 7;
+    private static final int WHILE = 8;
+    private static final int FOR = 9;
+
+    // Literal values. A number that is some integer over a power of ten
+    // is written as the two, which is shorter than the double and as
+    // quick to read back.
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int STRING = 3;
+    private static final int DECIMAL = 4;
+    private static final int DOUBLE = 5;
+
+    // Every power of ten a double holds exactly.
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    static Path directory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+    }
+
+    // The file a script with this source is saved in. The charset it is
+    // read with is part of the key, since it changes what gets parsed.
+    static Path entry(Path directory, byte[] source, Charset charset) {
+        MessageDigest digest = digest();
+        if(SCHEMA != null) digest.update(SCHEMA);
+        digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        byte[] hash = digest.digest(source);
+
+        StringBuilder name = new StringBuilder();
+        for(byte b : hash) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return directory.resolve(name.append(".ast").toString());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] schema(Class<?>... roots) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for(Class<?> root : roots) {
+            classes.add(root);
+            List<Class<?>> nested = Arrays.asList(root.getDeclaredClasses());
+            nested.sort(Comparator.comparing(Class::getName));
+            classes.addAll(nested);
+        }
+
+        MessageDigest digest = digest();
+        for(Class<?> type : classes) {
+            String name = type.getName();
+            String file = name.substring(name.lastIndexOf('.') + 1) + ".class";
+            try(InputStream in = type.getResourceAsStream(file)) {
+                if(in == null) return null;
+                digest.update(in.readAllBytes());
+            } catch(IOException e) {
+                return null;
+            }
+        }
+
+        return digest.digest();
+    }
+
+    // Returns the saved statements, or null if there are none or they
+    // can't be read.
+    static List<Stmt> load(Path entry) {
+        if(SCHEMA == null) return null;
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(entry);
+            // Marks it as recently used for prune().
+            Files.setLastModifiedTime(entry,
+                    FileTime.fromMillis(System.currentTimeMillis()));
+        } catch(IOException e) {
+            return null;
+        }
+
+        try {
+            return new Decoder(bytes).decode();
+        } catch(RuntimeException e) {
+            // Truncated or damaged.
+            return null;
+        }
+    }
+
+    // Saving is best effort: a cache that can't be written is no error.
+    // The file is written aside and moved into place, so a run never sees
+    // half of one.
+    static void save(Path entry, List<Stmt> statements) {
+        if(SCHEMA == null) return;
+
+        byte[] bytes = new AstCache().encode(statements);
+
+        try {
+            Files.createDirectories(entry.getParent());
+            Path temporary = Files.createTempFile(
+                    entry.getParent(), "ast", ".tmp");
+            try {
+                Files.write(temporary, bytes);
+                Files.move(temporary, entry,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch(IOException e) {
+            // Parsed again next time.
+            return;
+        }
+
+        prune(entry.getParent());
+    }
+
+    // Drops the files loaded or saved least recently until the rest fit
+    // in LIMIT. Other runs may be pruning too, so files that are already
+    // gone are skipped.
+    private static void prune(Path directory) {
+        List<Path> files = new ArrayList<Path>();
+        Map<Path, Long> sizes = new HashMap<Path, Long>();
+        Map<Path, FileTime> times = new HashMap<Path, FileTime>();
+        long total = 0;
+
+        try(DirectoryStream<Path> entries =
+                Files.newDirectoryStream(directory, "*.ast")) {
+            for(Path file : entries) {
+                try {
+                    long size = Files.size(file);
+                    times.put(file, Files.getLastModifiedTime(file));
+                    sizes.put(file, size);
+                    files.add(file);
+                    total += size;
+                } catch(IOException e) {
+                    // Pruned by another run.
+                }
+            }
+        } catch(IOException e) {
+            return;
+        }
+
+        if(total <= LIMIT) return;
+
+        files.sort(Comparator.comparing(times::get));
+        for(Path file : files) {
+            if(total <= LIMIT) break;
+
+            try {
+                Files.deleteIfExists(file);
+            } catch(IOException e) {
+                // Left for the next prune.
+            }
+            total -= sizes.get(file);
+        }
+    }
+
+    private final Output strings = new Output();
+    private final Output nodes = new Output();
+    private final Map<String, Integer> indices =
+        new HashMap<String, Integer>();
+    private int line = 0;
+
+    private byte[] encode(List<Stmt> statements) {
+        nodes.varint(statements.size());
+        for(Stmt statement : statements) {
+            write(statement);
+        }
+
+        Output file = new Output();
+        file.fixed(MAGIC);
+        file.varint(indices.size());
+        file.bytes(strings);
+        file.bytes(nodes);
+        return file.toByteArray();
+    }
+
+    private void write(Stmt stmt) {
+        if(stmt == null) {
+            nodes.varint(0);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    private void write(Expr expr) {
+        if(expr == null) {
+            nodes.varint(0);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    private void write(Token token) {
+        boolean literal = token.literal != null;
+        nodes.varint(token.type.ordinal() << 1 | (literal ? 1 : 0));
+        nodes.varint(token.lexeme == null ? 0 : string(token.lexeme) + 1);
+        if(literal) value(token.literal);
+        nodes.signed(token.line - line);
+        line = token.line;
+    }
+
+    private void value(Object value) {
+        if(value == null) {
+            nodes.varint(NIL);
+        } else if(value instanceof Boolean) {
+            nodes.varint((Boolean)value ? TRUE : FALSE);
+        } else if(value instanceof String) {
+            nodes.varint(STRING);
+            nodes.varint(string((String)value));
+        } else {
+            number((Double)value);
+        }
+    }
+
+    private void number(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        for(int scale = 0; scale < POWERS.length; scale++) {
+            double scaled = value * POWERS[scale];
+            // Past 2^53 not every integer is a double.
+            if(Math.abs(scaled) > (double)(1L << 53)) break;
+
+            long mantissa = (long)scaled;
+            if(mantissa == scaled && Double.doubleToRawLongBits(
+                        mantissa / POWERS[scale]) == bits) {
+                nodes.varint(DECIMAL);
+                nodes.signed(mantissa);
+                nodes.varint(scale);
+                return;
+            }
+        }
+
+        nodes.varint(DOUBLE);
+        nodes.fixed((int)(bits >>> 32));
+        nodes.fixed((int)bits);
+    }
+
+    // Index of a string in the table, adding it if it's new.
+    private int string(String value) {
+        Integer index = indices.get(value);
+        if(index != null) return index;
+
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        strings.varint(utf8.length);
+        strings.bytes(utf8, utf8.length);
+
+        indices.put(value, indices.size());
+        return indices.size() - 1;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        nodes.varint(CONDITIONAL);
+        write(expr.condition);
+        write(expr.thenBranch);
+        write(expr.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        nodes.varint(BINARY);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        nodes.varint(GROUPING);
+        write(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        nodes.varint(LITERAL);
+        value(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        nodes.varint(UNARY);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitPostfixExpr(Expr.Postfix expr) {
+        nodes.varint(POSTFIX);
+        write(expr.left);
+        write(expr.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        nodes.varint(VARIABLE);
+        write(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        nodes.varint(ASSIGN);
+        write(expr.name);
+        write(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        nodes.varint(LOGICAL);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        nodes.varint(EXPRESSION);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        nodes.varint(BREAK);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        nodes.varint(CONTINUE);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        nodes.varint(PRINT);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        nodes.varint(VAR);
+        write(stmt.name);
+        write(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        nodes.varint(BLOCK);
+        nodes.varint(stmt.statements.size());
+        for(Stmt statement : stmt.statements) {
+            write(statement);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        nodes.varint(IF);
+        write(stmt.condition);
+        write(stmt.thenBranch);
+        write(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        nodes.varint(WHILE);
+        write(stmt.condition);
+        write(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        nodes.varint(FOR);
+        write(stmt.initializer);
+        write(stmt.condition);
+        write(stmt.increment);
+        write(stmt.body);
+        return null;
+    }
+
+    private static class Output {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        void varint(long value) {
+            while((value & ~0x7fL) != 0) {
+                add((byte)((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            add((byte)value);
+        }
+
+        // Small negative numbers as short as small positive ones.
+        void signed(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        void fixed(int value) {
+            add((byte)(value >>> 24));
+            add((byte)(value >>> 16));
+            add((byte)(value >>> 8));
+            add((byte)value);
+        }
+
+        void bytes(Output output) {
+            bytes(output.bytes, output.size);
+        }
+
+        void bytes(byte[] from, int count) {
+            if(size + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes,
+                        Math.max(bytes.length * 2, size + count));
+            }
+            System.arraycopy(from, 0, bytes, size, count);
+            size += count;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void add(byte b) {
+            if(size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = b;
+        }
+    }
+
+    // Reads a file back in one pass over its bytes. Anything malformed
+    // ends in a RuntimeException, which load() takes for a miss.
+    private static class Decoder {
+        private final byte[] bytes;
+        private int position = 0;
+        private String[] strings;
+        private int line = 0;
+
+        Decoder(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        List<Stmt> decode() {
+            if(fixed() != MAGIC) return null;
+
+            strings = new String[count()];
+            for(int i = 0; i < strings.length; i++) {
+                int length = count();
+                // The Resolver tells names apart by identity, as the
+                // Scanner interns them.
+                strings[i] = new String(bytes, position, length,
+                        StandardCharsets.UTF_8).intern();
+                position += length;
+            }
+
+            int count = count();
+            List<Stmt> statements = new ArrayList<Stmt>(count);
+            for(int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+
+            if(position != bytes.length) return null;
+            return statements;
+        }
+
+        private Stmt stmt() {
+            switch(varint()) {
+                case 0: return null;
+                case EXPRESSION: return new Stmt.Expression(expr());
+                case BREAK: return new Stmt.Break();
+                case CONTINUE: return new Stmt.Continue();
+                case PRINT: return new Stmt.Print(expr());
+                case VAR: return new Stmt.Var(token(), expr());
+                case BLOCK: {
+                    int count = count();
+                    List<Stmt> statements = new ArrayList<Stmt>(count);
+                    for(int i = 0; i < count; i++) {
+                        statements.add(stmt());
+                    }
+                    return new Stmt.Block(statements);
+                }
+                case IF: return new Stmt.If(expr(), stmt(), stmt());
+                case WHILE: return new Stmt.While(expr(), stmt());
+                case FOR: return new Stmt.For(stmt(), expr(), expr(), stmt());
+                default: throw new IllegalStateException("Bad statement tag.");
+            }
+        }
+
+        // Java evaluates arguments left to right, which is the order the
+        // fields were written in.
+        private Expr expr() {
+            switch(varint()) {
+                case 0: return null;
+                case CONDITIONAL:
+                    return new Expr.Conditional(expr(), expr(), expr());
+                case BINARY: return new Expr.Binary(expr(), token(), expr());
+                case GROUPING: return new Expr.Grouping(expr());
+                case LITERAL: return new Expr.Literal(value());
+                case UNARY: return new Expr.Unary(token(), expr());
+                case POSTFIX: return new Expr.Postfix(expr(), token());
+                case VARIABLE: return new Expr.Variable(token());
+                case ASSIGN: return new Expr.Assign(token(), expr());
+                case LOGICAL: return new Expr.Logical(expr(), token(), expr());
+                default: throw new IllegalStateException("Bad expression tag.");
+            }
+        }
+
+        private Token token() {
+            int header = varint();
+            TokenType type = TYPES[header >>> 1];
+            int lexeme = varint();
+            Object literal = (header & 1) != 0 ? value() : null;
+            line += signed();
+            return new Token(type, lexeme == 0 ? null : strings[lexeme - 1],
+                    literal, line);
+        }
+
+        private Object value() {
+            switch(varint()) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case STRING: return strings[varint()];
+                case DECIMAL: {
+                    long mantissa = signed();
+                    return mantissa / POWERS[varint()];
+                }
+                case DOUBLE: {
+                    long high = fixed() & 0xffffffffL;
+                    long low = fixed() & 0xffffffffL;
+                    return Double.longBitsToDouble((high << 32) | low);
+                }
+                default: throw new IllegalStateException("Bad value tag.");
+            }
+        }
+
+        // A count of things still to be read, each at least a byte long.
+        private int count() {
+            int count = varint();
+            if(count < 0 || count > bytes.length - position) {
+                throw new IllegalStateException("Bad count.");
+            }
+            return count;
+        }
+
+        private int varint() {
+            return (int)varlong();
+        }
+
+        private long signed() {
+            long value = varlong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long varlong() {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long)(b & 0x7f) << shift;
+                if(b >= 0) return value;
+            }
+
+            throw new IllegalStateException("Bad varint.");
+        }
+
+        private int fixed() {
+            int value = 0;
+            for(int i = 0; i < 4; i++) {
+                value = (value << 8) | (bytes[position++] & 0xff);
+            }
+            return value;
+        }
+    }
+}
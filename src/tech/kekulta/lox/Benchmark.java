@@ -0,0 +1,194 @@
+package tech.kekulta.lox;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+class Benchmark {
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+    // Keystrokes per run in --edit mode.
+    private static final int EDITS = 100;
+
+    private static String engine = "tree";
+    // Keeps the lexers' work observable.
+    static int tokens;
+    // Where --cache saves the script.
+    private static Path entry;
+    // The script open for --edit, and where to type into it.
+    private static Document document;
+    private static int[] edits;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length == 0) {
+            System.err.println("Usage: benchmark "
+                    + "[--jvm|--closure|--parse|--lex|--mmap|--parallel"
+                    + "|--edit|--cache|--lazy|--optimize] "
+                    + "[script...]");
+            System.exit(64);
+        }
+
+        for(String path : args) {
+            if(path.equals("--jvm") || path.equals("--closure")
+                    || path.equals("--parse") || path.equals("--lex")
+                    || path.equals("--mmap") || path.equals("--parallel")
+                    || path.equals("--edit") || path.equals("--cache")
+                    || path.equals("--lazy") || path.equals("--optimize")) {
+                engine = path.substring(2);
+                continue;
+            }
+
+            Path file = Paths.get(path);
+            // The lexers read the file themselves on every run.
+            String source = isLexer() ? null : new String(
+                    Files.readAllBytes(file), Charset.defaultCharset());
+            if(engine.equals("edit")) open(source);
+            if(engine.equals("cache")) save(source);
+
+            for(int i = 0; i < WARMUP; i++) {
+                run(file, source);
+            }
+
+            long time = 0;
+            long allocated = 0;
+            for(int i = 0; i < RUNS; i++) {
+                long bytesBefore = allocatedBytes();
+                long timeBefore = System.nanoTime();
+
+                run(file, source);
+
+                time += System.nanoTime() - timeBefore;
+                allocated += allocatedBytes() - bytesBefore;
+            }
+
+            System.out.printf("%-30s %-6s %8.2f ms/run %10.2f MB/run\n",
+                    Paths.get(path).getFileName(), engine,
+                    time / 1e6 / RUNS,
+                    allocated / 1024.0 / 1024.0 / RUNS);
+        }
+    }
+
+    private static void run(Path file, String source) throws IOException {
+        if(isLexer()) {
+            lex(file);
+            return;
+        }
+
+        if(engine.equals("edit")) {
+            edit();
+            return;
+        }
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try {
+            List<Stmt> statements;
+            if(engine.equals("cache")) {
+                statements = AstCache.load(entry);
+            } else {
+                statements = new Parser(new Scanner(source),
+                        engine.equals("lazy")).parse();
+            }
+            if(Lox.hadError) throw new IllegalStateException("Parse error.");
+
+            if(engine.equals("optimize")) {
+                statements = new Optimizer().optimize(statements);
+            }
+
+            new Resolver().resolve(statements);
+            if(engine.equals("parse") || engine.equals("cache")) return;
+
+            newEngine().interpret(statements);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    // Saves the parsed script in a temporary cache, which --cache then
+    // loads on every run in place of parsing, to compare with --parse.
+    private static void save(String source) throws IOException {
+        byte[] bytes = source.getBytes(Charset.defaultCharset());
+        entry = AstCache.entry(Files.createTempDirectory("jlox"),
+                bytes, Charset.defaultCharset());
+        AstCache.save(entry, new Parser(new Scanner(source)).parse());
+        // Deleted in reverse, the file before its directory.
+        entry.getParent().toFile().deleteOnExit();
+        entry.toFile().deleteOnExit();
+    }
+
+    // Picks the start of a line at points spread over the script, where
+    // a space doesn't split a token.
+    private static void open(String source) {
+        document = new Document(source);
+        edits = new int[EDITS];
+        for(int i = 0; i < EDITS; i++) {
+            int offset = (int)((long)source.length() * i / EDITS);
+            edits[i] = i == 0 ? 0 : source.indexOf('\n', offset) + 1;
+        }
+    }
+
+    // Types a space and deletes it again at each point, parsing after
+    // every edit like an editor would.
+    private static void edit() {
+        for(int offset : edits) {
+            document.edit(offset, 0, " ");
+            document.edit(offset, 1, "");
+        }
+
+        if(document.hadError()) {
+            throw new IllegalStateException("Parse error.");
+        }
+    }
+
+    private static boolean isLexer() {
+        return engine.equals("lex") || engine.equals("mmap")
+            || engine.equals("parallel");
+    }
+
+    // Scans the file from disk like Lox.runFile would, without parsing.
+    private static void lex(Path file) throws IOException {
+        if(engine.equals("mmap")) {
+            count(MappedScanner.open(file));
+            return;
+        }
+
+        if(engine.equals("parallel")) {
+            count(ParallelScanner.open(file));
+            return;
+        }
+
+        try(Reader reader = new InputStreamReader(
+                    Files.newInputStream(file), Charset.defaultCharset())) {
+            count(new Scanner(reader));
+        }
+    }
+
+    private static void count(Scanner scanner) {
+        int count = 0;
+        while(scanner.nextToken() != TokenType.EOF) count++;
+        tokens = count;
+    }
+
+    private static Engine newEngine() {
+        switch(engine) {
+            case "jvm": return new JvmEngine();
+            case "closure": return new ClosureCompiler();
+            default: return new Interpreter();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+            .getCurrentThreadAllocatedBytes();
+    }
+}
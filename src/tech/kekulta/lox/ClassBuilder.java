@@ -0,0 +1,325 @@
+package tech.kekulta.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal class file writer for JvmCompiler. It emits version 49 class
+// files, which are verified by type inference and so need no
+// StackMapTable frames.
+class ClassBuilder {
+    static class TooLargeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_1 = 0x04;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IXOR = 0x82;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int GETSTATIC = 0xb2;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+
+    class Code {
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int depth = 0;
+        private int maxStack = 0;
+        private int maxLocals = 0;
+        private final List<Integer> labels = new ArrayList<Integer>();
+        // Pairs of (jump instruction offset, label) to fix up in finish().
+        private final List<int[]> jumps = new ArrayList<int[]>();
+
+        void op(int opcode, int stackEffect) {
+            u1(opcode);
+            adjust(stackEffect);
+        }
+
+        void local(int opcode, int index) {
+            if(index > 0xff) throw new TooLargeException("Too many locals.");
+
+            maxLocals = Math.max(maxLocals, index + 1);
+            u1(opcode);
+            u1(index);
+            adjust(opcode == ALOAD ? 1 : -1);
+        }
+
+        void pushInt(int value) {
+            if(value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(integer(value));
+            }
+            adjust(1);
+        }
+
+        void invokeStatic(
+                String owner, String name, String desc, int stackEffect) {
+            u1(INVOKESTATIC);
+            u2(methodRef(owner, name, desc));
+            adjust(stackEffect);
+        }
+
+        void invokeVirtual(
+                String owner, String name, String desc, int stackEffect) {
+            u1(INVOKEVIRTUAL);
+            u2(methodRef(owner, name, desc));
+            adjust(stackEffect);
+        }
+
+        void getStatic(String owner, String name, String desc) {
+            u1(GETSTATIC);
+            u2(fieldRef(owner, name, desc));
+            adjust(1);
+        }
+
+        void checkCast(String type) {
+            u1(CHECKCAST);
+            u2(classRef(type));
+        }
+
+        int newLabel() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        void mark(int label) {
+            labels.set(label, length);
+        }
+
+        void jump(int opcode, int label) {
+            jumps.add(new int[] { length, label });
+            u1(opcode);
+            u2(0);
+            adjust(opcode == GOTO ? 0 : opcode == IF_ACMPNE ? -2 : -1);
+        }
+
+        // Stack depth is tracked linearly; callers reset it where paths
+        // with different depths join.
+        void setDepth(int depth) {
+            this.depth = depth;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        int length() {
+            return length;
+        }
+
+        private void adjust(int effect) {
+            depth += effect;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        private void u1(int b) {
+            if(length == code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[length++] = (byte)b;
+        }
+
+        private void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+
+        private void finish() {
+            if(length > 0xffff) {
+                throw new TooLargeException("Method too large.");
+            }
+
+            for(int[] jump : jumps) {
+                int offset = labels.get(jump[1]) - jump[0];
+                if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new TooLargeException("Jump too far.");
+                }
+
+                code[jump[0] + 1] = (byte)(offset >> 8);
+                code[jump[0] + 2] = (byte)offset;
+            }
+        }
+    }
+
+    private final String name;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex =
+        new HashMap<String, Integer>();
+    private int poolCount = 1;
+    private final List<String[]> methodSignatures = new ArrayList<String[]>();
+    private final List<Code> methods = new ArrayList<Code>();
+
+    ClassBuilder(String name) {
+        this.name = name;
+    }
+
+    Code method(String methodName, String desc, int parameterSlots) {
+        Code code = new Code();
+        code.maxLocals = parameterSlots;
+        methodSignatures.add(new String[] { methodName, desc });
+        methods.add(code);
+        return code;
+    }
+
+    byte[] build() {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int codeName = utf8("Code");
+
+        int[] names = new int[methods.size()];
+        int[] descs = new int[methods.size()];
+        for(int i = 0; i < methods.size(); i++) {
+            methods.get(i).finish();
+            names[i] = utf8(methodSignatures.get(i)[0]);
+            descs[i] = utf8(methodSignatures.get(i)[1]);
+        }
+
+        if(poolCount > 0xffff) {
+            throw new TooLargeException("Constant pool too large.");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+
+            out.writeShort(0x0010 | 0x0020); // final, super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(methods.size());
+            for(int i = 0; i < methods.size(); i++) {
+                Code code = methods.get(i);
+                out.writeShort(0x0008); // static
+                out.writeShort(names[i]);
+                out.writeShort(descs[i]);
+                out.writeShort(1);
+
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(code.maxStack);
+                out.writeShort(code.maxLocals);
+                out.writeInt(code.length);
+                out.write(code.code, 0, code.length);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            }
+
+            out.writeShort(0); // attributes
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String value) {
+        Integer index = poolIndex.get("U" + value);
+        if(index != null) return index;
+
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(value);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add("U" + value);
+    }
+
+    private int integer(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if(index != null) return index;
+
+        try {
+            poolOut.writeByte(3);
+            poolOut.writeInt(value);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add("I" + value);
+    }
+
+    private int classRef(String className) {
+        Integer index = poolIndex.get("C" + className);
+        if(index != null) return index;
+
+        int nameIndex = utf8(className);
+        try {
+            poolOut.writeByte(7);
+            poolOut.writeShort(nameIndex);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add("C" + className);
+    }
+
+    private int memberRef(int tag, String owner, String member, String desc) {
+        String key = tag + owner + "." + member + desc;
+        Integer index = poolIndex.get(key);
+        if(index != null) return index;
+
+        int ownerIndex = classRef(owner);
+        int memberIndex = utf8(member);
+        int descIndex = utf8(desc);
+
+        try {
+            poolOut.writeByte(12);
+            poolOut.writeShort(memberIndex);
+            poolOut.writeShort(descIndex);
+            int nameAndType = poolCount++;
+
+            poolOut.writeByte(tag);
+            poolOut.writeShort(ownerIndex);
+            poolOut.writeShort(nameAndType);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add(key);
+    }
+
+    private int methodRef(String owner, String member, String desc) {
+        return memberRef(10, owner, member, desc);
+    }
+
+    private int fieldRef(String owner, String member, String desc) {
+        return memberRef(9, owner, member, desc);
+    }
+
+    private int add(String key) {
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+}
@@ -0,0 +1,499 @@
+package tech.kekulta.lox;
+
+import java.util.List;
+
+import static tech.kekulta.lox.Interpreter.isEqual;
+import static tech.kekulta.lox.Interpreter.isTruthy;
+import static tech.kekulta.lox.Interpreter.stringify;
+
+// Turns every node into a closure once, with its children, slots and
+// operator already bound, so running a script never goes through a
+// Visitor or a switch on the operator. Statements report how they
+// completed instead of throwing for break and continue.
+class ClosureCompiler
+        implements Engine, Expr.Visitor<ClosureCompiler.Eval>,
+                   Stmt.Visitor<ClosureCompiler.Exec> {
+    interface Eval {
+        Object eval(Environment env);
+    }
+
+    interface Exec {
+        int exec(Environment env);
+    }
+
+    private interface Store {
+        void store(Environment env, Object value);
+    }
+
+    private static final int NORMAL = 0;
+    private static final int BREAK = 1;
+    private static final int CONTINUE = 2;
+
+    private final Environment globals = new Environment();
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        Exec[] program = compile(statements);
+
+        try {
+            for(Exec exec : program) {
+                exec.exec(globals);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    @Override
+    public String interpret(Stmt.Expression stmt) {
+        Eval eval = compile(stmt.expression);
+
+        try {
+            return stringify(eval.eval(globals));
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt) {
+        Eval expression = compile(stmt.expression);
+        return env -> {
+            expression.eval(env);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitPrintStmt(Stmt.Print stmt) {
+        Eval expression = compile(stmt.expression);
+        return env -> {
+            Printer.print(stringify(expression.eval(env)));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt) {
+        int slot = stmt.slot;
+
+        if(stmt.initializer == null) {
+            return env -> {
+                env.define(slot, null);
+                return NORMAL;
+            };
+        }
+
+        Eval initializer = compile(stmt.initializer);
+        return env -> {
+            env.define(slot, initializer.eval(env));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block stmt) {
+        Exec[] statements = compile(stmt.statements);
+        int slots = stmt.slots;
+        int[] undeclared = stmt.undeclared;
+
+        if(undeclared != null) {
+            return env -> {
+                Environment frame =
+                    slots == 0 ? env : new Environment(env, slots);
+                frame.undefine(undeclared);
+                return executeAll(statements, frame);
+            };
+        }
+
+        if(slots == 0) {
+            return env -> executeAll(statements, env);
+        }
+
+        return env -> executeAll(statements, new Environment(env, slots));
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec thenBranch = compile(stmt.thenBranch);
+
+        if(stmt.elseBranch == null) {
+            return env -> isTruthy(condition.eval(env))
+                ? thenBranch.exec(env)
+                : NORMAL;
+        }
+
+        Exec elseBranch = compile(stmt.elseBranch);
+        return env -> isTruthy(condition.eval(env))
+            ? thenBranch.exec(env)
+            : elseBranch.exec(env);
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt) {
+        Eval condition = compile(stmt.condition);
+        Exec body = compile(stmt.body);
+
+        return env -> {
+            while(isTruthy(condition.eval(env))) {
+                if(body.exec(env) == BREAK) break;
+            }
+
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitForStmt(Stmt.For stmt) {
+        Exec initializer = stmt.initializer == null
+            ? env -> NORMAL
+            : compile(stmt.initializer);
+        Eval condition = stmt.condition == null
+            ? env -> true
+            : compile(stmt.condition);
+        Eval increment = stmt.increment == null
+            ? env -> null
+            : compile(stmt.increment);
+        Exec body = compile(stmt.body);
+
+        return env -> {
+            initializer.exec(env);
+            while(isTruthy(condition.eval(env))) {
+                if(body.exec(env) == BREAK) break;
+                increment.eval(env);
+            }
+
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitBreakStmt(Stmt.Break stmt) {
+        return env -> BREAK;
+    }
+
+    @Override
+    public Exec visitContinueStmt(Stmt.Continue stmt) {
+        return env -> CONTINUE;
+    }
+
+    @Override
+    public Eval visitConditionalExpr(Expr.Conditional expr) {
+        Eval condition = compile(expr.condition);
+        Eval thenBranch = compile(expr.thenBranch);
+        Eval elseBranch = compile(expr.elseBranch);
+
+        return env -> isTruthy(condition.eval(env))
+            ? thenBranch.eval(env)
+            : elseBranch.eval(env);
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr) {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch(operator.type) {
+            case SLASH:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    requireNumberOperands(operator, l, r);
+                    if((double)r == 0.0) {
+                        throw new RuntimeError(operator, "Division by zero!");
+                    }
+
+                    return (double)l / (double)r;
+                };
+            case STAR:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    requireNumberOperands(operator, l, r);
+                    return (double)l * (double)r;
+                };
+            case MINUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    requireNumberOperands(operator, l, r);
+                    return (double)l - (double)r;
+                };
+            case PLUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if(l instanceof Double && r instanceof Double)
+                        return (double)l + (double)r;
+
+                    if(l instanceof String || r instanceof String)
+                        return stringify(l) + stringify(r);
+
+                    throw new RuntimeError(operator,
+                            "Operands must be two numbers or strings.");
+                };
+
+            case EQUAL_EQUAL:
+                return env -> isEqual(left.eval(env), right.eval(env));
+            case BANG_EQUAL:
+                return env -> !isEqual(left.eval(env), right.eval(env));
+
+            case GREATER:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if(l instanceof Double && r instanceof Double)
+                        return (double)l > (double)r;
+                    return compare(operator, l, r) > 0;
+                };
+            case GREATER_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if(l instanceof Double && r instanceof Double)
+                        return (double)l >= (double)r;
+                    return compare(operator, l, r) >= 0;
+                };
+            case LESS:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if(l instanceof Double && r instanceof Double)
+                        return (double)l < (double)r;
+                    return compare(operator, l, r) < 0;
+                };
+            case LESS_EQUAL:
+                return env -> {
+                    Object l = left.eval(env);
+                    Object r = right.eval(env);
+                    if(l instanceof Double && r instanceof Double)
+                        return (double)l <= (double)r;
+                    return compare(operator, l, r) <= 0;
+                };
+
+            case COMMA:
+                return env -> {
+                    left.eval(env);
+                    return right.eval(env);
+                };
+        }
+
+        return env -> {
+            left.eval(env);
+            right.eval(env);
+            return null;
+        };
+    }
+
+    @Override
+    public Eval visitLogicalExpr(Expr.Logical expr) {
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+
+        switch(expr.operator.type) {
+            case OR:
+                return env -> {
+                    Object l = left.eval(env);
+                    return isTruthy(l) ? l : right.eval(env);
+                };
+            case AND:
+                return env -> {
+                    Object l = left.eval(env);
+                    return !isTruthy(l) ? l : right.eval(env);
+                };
+        }
+
+        return env -> {
+            left.eval(env);
+            return right.eval(env);
+        };
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return env -> value;
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary expr) {
+        Eval right = compile(expr.right);
+        Token operator = expr.operator;
+        Store store = expr.right instanceof Expr.Variable
+            ? store((Expr.Variable)expr.right)
+            : (env, value) -> {};
+
+        switch(operator.type) {
+            case BANG:
+                return env -> !isTruthy(right.eval(env));
+            case MINUS:
+                return env -> {
+                    Object r = right.eval(env);
+                    requireNumberOperand(operator, r);
+                    return -(double)r;
+                };
+            case MINUS_MINUS:
+                return env -> {
+                    Object r = right.eval(env);
+                    requireNumberOperand(operator, r);
+                    Object value = (double)r - 1;
+                    store.store(env, value);
+                    return value;
+                };
+            case PLUS_PLUS:
+                return env -> {
+                    Object r = right.eval(env);
+                    requireNumberOperand(operator, r);
+                    Object value = (double)r + 1;
+                    store.store(env, value);
+                    return value;
+                };
+        }
+
+        return env -> {
+            right.eval(env);
+            return null;
+        };
+    }
+
+    @Override
+    public Eval visitPostfixExpr(Expr.Postfix expr) {
+        Eval left = compile(expr.left);
+        Token operator = expr.operator;
+        Store store = expr.left instanceof Expr.Variable
+            ? store((Expr.Variable)expr.left)
+            : (env, value) -> {};
+
+        switch(operator.type) {
+            case MINUS_MINUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    requireNumberOperand(operator, l);
+                    store.store(env, (double)l - 1);
+                    return l;
+                };
+            case PLUS_PLUS:
+                return env -> {
+                    Object l = left.eval(env);
+                    requireNumberOperand(operator, l);
+                    store.store(env, (double)l + 1);
+                    return l;
+                };
+        }
+
+        return env -> {
+            left.eval(env);
+            return null;
+        };
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable expr) {
+        Token name = expr.name;
+        int depth = expr.depth;
+        int slot = expr.slot;
+
+        // The outer variable until a for loop under an if or a loop has
+        // declared this one.
+        if(expr.outer != null) {
+            Eval outer = compile(expr.outer);
+            return env -> env.ancestor(depth).isDefined(slot)
+                ? env.getAt(depth, name, slot)
+                : outer.eval(env);
+        }
+
+        if(depth == Resolver.GLOBAL) return env -> globals.get(name, slot);
+        if(depth == 0) return env -> env.get(name, slot);
+        return env -> env.getAt(depth, name, slot);
+    }
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr) {
+        Eval value = compile(expr.value);
+        Store store = store(expr.name, expr.depth, expr.slot, expr.outer);
+
+        return env -> {
+            Object v = value.eval(env);
+            store.store(env, v);
+            return v;
+        };
+    }
+
+    private Store store(Expr.Variable var) {
+        return store(var.name, var.depth, var.slot, var.outer);
+    }
+
+    private Store store(
+            Token name, int depth, int slot, Expr.Variable outer) {
+        if(outer != null) {
+            Store fallback = store(outer);
+            return (env, value) -> {
+                if(env.ancestor(depth).isDefined(slot)) {
+                    env.assignAt(depth, name, slot, value);
+                } else {
+                    fallback.store(env, value);
+                }
+            };
+        }
+        if(depth == Resolver.GLOBAL) {
+            return (env, value) -> globals.assign(name, slot, value);
+        }
+        if(depth == 0) return (env, value) -> env.assign(name, slot, value);
+        return (env, value) -> env.assignAt(depth, name, slot, value);
+    }
+
+    private static int executeAll(Exec[] statements, Environment env) {
+        for(Exec statement : statements) {
+            int completion = statement.exec(env);
+            if(completion != NORMAL) return completion;
+        }
+
+        return NORMAL;
+    }
+
+    private static int compare(Token operator, Object left, Object right) {
+        if(left instanceof String && right instanceof String)
+            return ((String)left).compareTo((String)right);
+
+        throw new RuntimeError(operator,
+                "Only numbers and Strings can be compared.");
+    }
+
+    private static void requireNumberOperands(
+            Token operator, Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError(operator, "Operand must be numbers");
+    }
+
+    private static void requireNumberOperand(Token operator, Object object) {
+        if(object instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number");
+    }
+
+    private Exec[] compile(List<Stmt> statements) {
+        Exec[] compiled = new Exec[statements.size()];
+        for(int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(statements.get(i));
+        }
+
+        return compiled;
+    }
+
+    private Exec compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Eval compile(Expr expr) {
+        return expr.accept(this);
+    }
+}
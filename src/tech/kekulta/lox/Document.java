@@ -0,0 +1,299 @@
+package tech.kekulta.lox;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// The text of a script open in an editor, kept parsed one top-level
+// declaration at a time. An edit is lexed and parsed again from just
+// before it until the Parser is back in step with a declaration that
+// starts past it, and every declaration from there on is kept as it was.
+//
+// The Parser decides where a declaration ends by looking at most at the
+// first token after it, so the declaration before the one holding an
+// edit is parsed again too. Past the edit the text is unchanged, and a
+// declaration lexed and parsed from the same place in the same text comes
+// out the same, only moved. Syntax errors are reported as the
+// declarations holding them are parsed again.
+//
+// Edits tend to follow each other closely, so neither the text nor the
+// declarations after an edit are moved right away. The text keeps a gap
+// where the last edit was, and the declarations past it are owed their
+// move until an edit or statements() gets to them.
+class Document {
+    private char[] text;
+    private int gapStart;
+    private int gapEnd;
+
+    private final List<Declaration> declarations =
+        new ArrayList<Declaration>();
+    // Declarations with a syntax error.
+    private int errors = 0;
+    // Whether lexing up to the first token of the first declaration
+    // reported an error. The Parser takes that token before any
+    // declaration is being parsed, so it can't be put on one.
+    private boolean leadingError = false;
+    // Declarations from `owing` on have yet to be moved by `owedDelta`
+    // chars and `owedLines` lines.
+    private int owing = 0;
+    private int owedDelta = 0;
+    private int owedLines = 0;
+
+    Document(String source) {
+        text = new char[source.length() + 64];
+        source.getChars(0, source.length(), text, 0);
+        gapStart = source.length();
+        gapEnd = text.length;
+        parse(0, 0, 0);
+    }
+
+    // Replaces `removed` chars at `offset` with `inserted`.
+    void edit(int offset, int removed, String inserted) {
+        if(offset < 0 || removed < 0 || offset + removed > length()) {
+            throw new IndexOutOfBoundsException(
+                    "Edit out of bounds: " + offset + "+" + removed);
+        }
+
+        replace(offset, removed, inserted);
+        parse(Math.max(find(offset) - 1, 0), offset + removed,
+                inserted.length() - removed);
+    }
+
+    // The declarations in order, with null for those that don't parse.
+    List<Stmt> statements() {
+        settle(declarations.size());
+
+        List<Stmt> statements = new ArrayList<Stmt>(declarations.size());
+        for(Declaration declaration : declarations) {
+            statements.add(declaration.statement);
+        }
+
+        return statements;
+    }
+
+    boolean hadError() {
+        return leadingError || errors > 0;
+    }
+
+    int length() {
+        return text.length - (gapEnd - gapStart);
+    }
+
+    String text() {
+        return new String(text, 0, gapStart)
+            + new String(text, gapEnd, text.length - gapEnd);
+    }
+
+    // Parses the text again from declaration `first` until it lines up
+    // with an old declaration that starts at or past `unchanged`, the end
+    // of the edit before it was made. Text from there on has moved by
+    // `delta`.
+    private void parse(int first, int unchanged, int delta) {
+        int from = first == 0 ? 0 : from(first);
+        int line = first == 0 ? 1 : line(first);
+
+        Scanner scanner = new Scanner(new TextReader(from), line);
+        // Past the first declaration, the token the Parser starts on was
+        // lexed by the declaration before it too, which kept its errors.
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+        Parser parser = new Parser(scanner);
+        if(first == 0) leadingError = Lox.hadError;
+        Lox.hadError |= hadError;
+        List<Declaration> parsed = new ArrayList<Declaration>();
+
+        int next = first;
+        int lines = 0;
+        while(parser.hasNext()) {
+            // The Scanner is at the first token of the next declaration.
+            int at = from + scanner.tokenOffset();
+            line = scanner.startLine();
+
+            while(next < declarations.size() && (from(next) < unchanged
+                        || from(next) + delta < at)) {
+                next++;
+            }
+
+            if(next < declarations.size() && from(next) + delta == at) {
+                lines = line - line(next);
+                break;
+            }
+
+            parsed.add(parse(parser, at, line));
+        }
+
+        if(parser.hasNext()) {
+            settle(next);
+            owing = first + parsed.size();
+            owedDelta += delta;
+            owedLines += lines;
+        } else {
+            // Nothing after `first` is kept to be owed a move.
+            if(owing < first) settle(first);
+            next = declarations.size();
+            owing = first + parsed.size();
+            owedDelta = 0;
+            owedLines = 0;
+        }
+
+        splice(first, next, parsed);
+    }
+
+    private Declaration parse(Parser parser, int at, int line) {
+        Declaration declaration = new Declaration(at, line);
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+
+        parser.collect(declaration.tokens);
+        declaration.statement = parser.next();
+        parser.collect(null);
+
+        declaration.hadError = Lox.hadError;
+        Lox.hadError |= hadError;
+        return declaration;
+    }
+
+    // Replaces declarations [from, to) with `parsed`, in place where the
+    // counts match so the rest of the list doesn't move.
+    private void splice(int from, int to, List<Declaration> parsed) {
+        for(int i = from; i < to; i++) {
+            if(declarations.get(i).hadError) errors--;
+        }
+        for(Declaration declaration : parsed) {
+            if(declaration.hadError) errors++;
+        }
+
+        int common = Math.min(to - from, parsed.size());
+        for(int i = 0; i < common; i++) {
+            declarations.set(from + i, parsed.get(i));
+        }
+
+        if(to - from > common) {
+            declarations.subList(from + common, to).clear();
+        } else {
+            declarations.addAll(to, parsed.subList(common, parsed.size()));
+        }
+    }
+
+    // Moves the declarations between `owing` and `index` so that those
+    // before `index` are owed nothing and those after it all are.
+    private void settle(int index) {
+        for(int i = owing; i < index; i++) {
+            move(declarations.get(i), owedDelta, owedLines);
+        }
+        for(int i = index; i < owing; i++) {
+            move(declarations.get(i), -owedDelta, -owedLines);
+        }
+
+        owing = index;
+    }
+
+    private static void move(Declaration declaration, int delta, int lines) {
+        declaration.from += delta;
+        if(lines == 0) return;
+
+        declaration.line += lines;
+        for(Token token : declaration.tokens) {
+            token.line += lines;
+        }
+    }
+
+    private int from(int index) {
+        return declarations.get(index).from
+            + (index >= owing ? owedDelta : 0);
+    }
+
+    private int line(int index) {
+        return declarations.get(index).line
+            + (index >= owing ? owedLines : 0);
+    }
+
+    // Index of the last declaration starting at or before `offset`, or -1.
+    private int find(int offset) {
+        int low = 0;
+        int high = declarations.size() - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(from(middle) <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high;
+    }
+
+    private void replace(int offset, int removed, String inserted) {
+        moveGap(offset);
+        gapEnd += removed;
+
+        if(gapEnd - gapStart < inserted.length()) {
+            int after = text.length - gapEnd;
+            char[] grown = new char[Math.max(
+                    text.length * 2, length() + inserted.length() + 64)];
+            System.arraycopy(text, 0, grown, 0, gapStart);
+            System.arraycopy(text, gapEnd, grown, grown.length - after, after);
+            text = grown;
+            gapEnd = grown.length - after;
+        }
+
+        inserted.getChars(0, inserted.length(), text, gapStart);
+        gapStart += inserted.length();
+    }
+
+    private void moveGap(int offset) {
+        if(offset < gapStart) {
+            int count = gapStart - offset;
+            System.arraycopy(text, offset, text, gapEnd - count, count);
+            gapStart -= count;
+            gapEnd -= count;
+        } else if(offset > gapStart) {
+            int count = offset - gapStart;
+            System.arraycopy(text, gapEnd, text, gapStart, count);
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+
+    // Reads the text from `position` on, around the gap.
+    private class TextReader extends Reader {
+        private int position;
+
+        TextReader(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) {
+            if(position >= length()) return -1;
+
+            count = Math.min(count, length() - position);
+            int before = Math.max(Math.min(count, gapStart - position), 0);
+            System.arraycopy(text, position, buffer, offset, before);
+            System.arraycopy(text, position + before + gapEnd - gapStart,
+                    buffer, offset + before, count - before);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Declaration {
+        // Where its first token starts, and on which line.
+        int from;
+        int line;
+        Stmt statement;
+        boolean hadError;
+        // Every token in its AST, to move them to other lines.
+        final List<Token> tokens = new ArrayList<Token>();
+
+        Declaration(int from, int line) {
+            this.from = from;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package tech.kekulta.lox;
+
+import java.util.List;
+
+interface Engine {
+    void interpret(List<Stmt> statements);
+    String interpret(Stmt.Expression stmt);
+}
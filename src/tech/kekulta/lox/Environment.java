@@ -1,59 +1,146 @@
 package tech.kekulta.lox;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
 class Environment {
     private final static Object Uninitialized = new Object();
+    private final static Object Undefined = new Object();
+    // Tags a slot whose value is kept unboxed in numbers.
+    private final static Object Number = new Object();
 
     private final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<String, Object>();
+    private Object[] values;
+    // Allocated on the first unboxed store.
+    private double[] numbers = null;
 
+    // Global frame: grows as the Resolver hands out new global slots.
     Environment() {
         enclosing = null;
+        values = new Object[0];
     }
 
-    Environment(Environment enclosing) {
+    // Local frame: the Resolver knows exactly how many slots a block needs.
+    Environment(Environment enclosing, int slots) {
         this.enclosing = enclosing;
+        this.values = new Object[slots];
     }
 
-
-    void define(String name, Object value) {
+    void define(int slot, Object value) {
         Object initial = value;
         if(initial == null) {
             initial = Uninitialized;
         }
-        values.put(name, initial);
+
+        if(slot >= values.length) {
+            grow(slot + 1);
+        }
+        values[slot] = initial;
+    }
+
+    void defineNumber(int slot, double value) {
+        if(slot >= values.length) {
+            grow(slot + 1);
+        }
+        if(numbers == null) {
+            numbers = new double[values.length];
+        }
+        values[slot] = Number;
+        numbers[slot] = value;
+    }
+
+    Object getAt(int distance, Token name, int slot) {
+        return ancestor(distance).get(name, slot);
+    }
+
+    void assignAt(int distance, Token name, int slot, Object value) {
+        ancestor(distance).assign(name, slot, value);
+    }
+
+    Object get(Token name, int slot) {
+        Object value = slot < values.length ? values[slot] : Undefined;
+
+        if(value == Number) return numbers[slot];
+
+        if(value == Undefined) {
+            throw new RuntimeError(name,
+                    "Undefined variable '" + name.lexeme + "'.");
+        }
+
+        if(value == Uninitialized) {
+            throw new RuntimeError(name,
+                    "Can't access uninitialized variable '"
+                    + name.lexeme + "'.");
+        }
+
+        return value;
+    }
+
+    void assign(Token name, int slot, Object value) {
+        if(slot >= values.length || values[slot] == Undefined) {
+            throw new RuntimeError(name,
+                    "Undefined variable '" + name.lexeme + "'.");
+        }
+
+        values[slot] = value;
     }
 
-    Object get(Token name) {
-        if(values.containsKey(name.lexeme)) {
-            if(values.get(name.lexeme) == Uninitialized) {
-                throw new RuntimeError(name,
-                        "Can't access uninitialized variable '"
-                        + name.lexeme + "'.");
-            }
-            return values.get(name.lexeme);
+    void assignNumber(Token name, int slot, double value) {
+        if(slot >= values.length || values[slot] == Undefined) {
+            throw new RuntimeError(name,
+                    "Undefined variable '" + name.lexeme + "'.");
         }
 
-        if(enclosing != null) return enclosing.get(name);
+        if(numbers == null) {
+            numbers = new double[values.length];
+        }
+        values[slot] = Number;
+        numbers[slot] = value;
+    }
+
+    // Slots a block declares only on some runs start out undefined.
+    void undefine(int[] slots) {
+        for(int slot : slots) {
+            values[slot] = Undefined;
+        }
+    }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+    boolean isDefined(int slot) {
+        return slot < values.length && values[slot] != Undefined;
     }
 
-    void assign(Token name, Object value) {
-        if(values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    // For slots that were just read, so they are known to be defined.
+    void setNumber(int slot, double value) {
+        if(numbers == null) {
+            numbers = new double[values.length];
         }
+        values[slot] = Number;
+        numbers[slot] = value;
+    }
 
-        if(enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    boolean isNumber(int slot) {
+        return slot < values.length && values[slot] == Number;
+    }
+
+    // Only valid for slots where isNumber() holds.
+    double getNumber(int slot) {
+        return numbers[slot];
+    }
+
+    Environment ancestor(int distance) {
+        Environment environment = this;
+        for(int i = 0; i < distance; i++) {
+            environment = environment.enclosing;
         }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+        return environment;
+    }
+
+    private void grow(int size) {
+        int oldSize = values.length;
+        values = Arrays.copyOf(values, Math.max(size, oldSize * 2));
+        if(numbers != null) {
+            numbers = Arrays.copyOf(numbers, values.length);
+        }
+        Arrays.fill(values, oldSize, values.length, Undefined);
     }
 }
@@ -49,6 +49,7 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+    int state;
   }
 
   static class Grouping extends Expr {
@@ -90,6 +91,7 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+    int state;
   }
 
   static class Postfix extends Expr {
@@ -105,6 +107,7 @@ abstract class Expr {
 
     final Expr left;
     final Token operator;
+    int state;
   }
 
   static class Variable extends Expr {
@@ -118,6 +121,9 @@ abstract class Expr {
     }
 
     final Token name;
+    int depth;
+    int slot;
+    Variable outer;
   }
 
   static class Assign extends Expr {
@@ -133,6 +139,9 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    int depth;
+    int slot;
+    Variable outer;
   }
 
   static class Logical extends Expr {
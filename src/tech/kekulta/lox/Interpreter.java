@@ -5,23 +5,69 @@ import java.util.List;
 
 import static tech.kekulta.lox.TokenType.*;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private static class BreakException extends RuntimeException {};
-    private static class ContinueException extends RuntimeException {};
-
-    private Environment env = new Environment();
+class Interpreter
+        implements Engine, Expr.Visitor<Object>, Stmt.Visitor<Void> {
+    // Break and continue unwind to the nearest loop by throwing. A single
+    // stackless instance of each is shared, so a jump allocates nothing.
+    private static class BreakException extends RuntimeException {
+        BreakException() {
+            super(null, null, false, false);
+        }
+    };
+    private static class ContinueException extends RuntimeException {
+        ContinueException() {
+            super(null, null, false, false);
+        }
+    };
+
+    private static final BreakException BREAK = new BreakException();
+    private static final ContinueException CONTINUE = new ContinueException();
+
+    // Values of the state field on Binary, Unary and Postfix nodes.
+    private static final int UNSPECIALIZED = 0;
+    private static final int GENERIC = 1;
+    private static final int NUMBER_ADD = 2;
+    private static final int NUMBER_SUBTRACT = 3;
+    private static final int NUMBER_MULTIPLY = 4;
+    private static final int NUMBER_DIVIDE = 5;
+    private static final int NUMBER_GREATER = 6;
+    private static final int NUMBER_GREATER_EQUAL = 7;
+    private static final int NUMBER_LESS = 8;
+    private static final int NUMBER_LESS_EQUAL = 9;
+    private static final int NUMBER_EQUAL = 10;
+    private static final int NUMBER_NOT_EQUAL = 11;
+    private static final int STRING_CONCAT = 12;
+    private static final int NUMBER_NEGATE = 13;
+    private static final int NUMBER_INCREMENT = 14;
+    private static final int NUMBER_DECREMENT = 15;
+
+    // Marks that evaluateNumber() produced a number; see notNumber.
+    private static final Object NUMBER = new Object();
+    // A NaN with a payload that arithmetic never produces, returned by
+    // evaluateNumber() in place of a value that isn't a number.
+    private static final double NOT_A_NUMBER =
+        Double.longBitsToDouble(0x7ff800000000deadL);
+
+    final Environment globals = new Environment();
+    private Environment env = globals;
+    // The value evaluateNumber() met when it wasn't a number.
+    private Object notNumber = null;
 
-    void interpret(List<Stmt> statements) {
+    @Override
+    public void interpret(List<Stmt> statements) {
         try {
             for(Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } catch (LazyBlock.SyntaxError error) {
+            // Reported by the Parser as the block was parsed.
         }
     }
 
-    String interpret(Stmt.Expression stmt) {
+    @Override
+    public String interpret(Stmt.Expression stmt) {
         try {
             return stringify(evaluate(stmt.expression));
         } catch (RuntimeError error) {
@@ -33,7 +79,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        evaluateForEffect(stmt.expression);
         return null;
     }
 
@@ -46,18 +92,45 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer instanceof Expr.Binary
+                && isArithmetic(((Expr.Binary)stmt.initializer).state)) {
+            double value = arithmetic((Expr.Binary)stmt.initializer);
+            Object notNumber = takeNotNumber(value);
+
+            if(notNumber == NUMBER) {
+                env.defineNumber(stmt.slot, value);
+            } else {
+                env.define(stmt.slot, notNumber);
+            }
+            return null;
+        }
+
         Object value = null;
         if(stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        env.define(stmt.name.lexeme, value);
+        env.define(stmt.slot, value);
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(env));
+        List<Stmt> statements = stmt.statements;
+        if(statements instanceof LazyBlock) {
+            statements = ((LazyBlock)statements).resolved(stmt);
+        }
+
+        if(stmt.slots == 0) {
+            if(stmt.undeclared != null) env.undefine(stmt.undeclared);
+            for(Stmt statement : statements) {
+                execute(statement);
+            }
+        } else {
+            Environment frame = new Environment(env, stmt.slots);
+            if(stmt.undeclared != null) frame.undefine(stmt.undeclared);
+            executeBlock(statements, frame);
+        }
         return null;
     }
 
@@ -93,11 +166,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         while(stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
             try {
                 execute(stmt.body);
-                if(stmt.increment != null) evaluate(stmt.increment);
+                if(stmt.increment != null) evaluateForEffect(stmt.increment);
             } catch(BreakException e) {
                 break;
             } catch(ContinueException e) {
-                if(stmt.increment != null) evaluate(stmt.increment);
+                if(stmt.increment != null) evaluateForEffect(stmt.increment);
                 continue;
             }
         }
@@ -107,12 +180,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new BreakException();
+        throw BREAK;
     }
 
     @Override
     public Void visitContinueStmt(Stmt.Continue stmt) {
-        throw new ContinueException();
+        throw CONTINUE;
     }
 
     @Override
@@ -128,9 +201,116 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if(isArithmetic(expr.state)) {
+            double value = arithmetic(expr);
+            Object notNumber = takeNotNumber(value);
+            return notNumber == NUMBER ? (Object)value : notNumber;
+        }
+
+        if(isComparison(expr.state)) return comparison(expr);
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        if(expr.state == STRING_CONCAT
+                && left instanceof String && right instanceof String) {
+            return (String)left + (String)right;
+        }
+
+        if(expr.state == GENERIC) return binary(expr, left, right);
+        return respecialize(expr, left, right);
+    }
+
+    @Override
+    public Object visitLogicalExpr(Expr.Logical expr) {
+        Object left = evaluate(expr.left);
+
+        switch(expr.operator.type) {
+            case OR:
+                if(isTruthy(left)) return left;
+                break;
+            case AND:
+                if(!isTruthy(left)) return left;
+                break;
+        }
+
+        return evaluate(expr.right);
+    }
+
+    @Override
+    public Object visitGroupingExpr(Expr.Grouping expr) {
+        return evaluate(expr.expression);
+    }
+
+    @Override
+    public Object visitLiteralExpr(Expr.Literal expr) {
+        return expr.value;
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+        if(isStep(expr.operator) && expr.right instanceof Expr.Variable) {
+            double value = step((Expr.Variable)expr.right, expr.operator);
+            return expr.operator.type == PLUS_PLUS ? value + 1 : value - 1;
+        }
+
+        Object right = evaluate(expr.right);
+
+        switch(expr.state) {
+            case NUMBER_NEGATE:
+                if(right instanceof Double) return -(double)right;
+                break;
+            case NUMBER_INCREMENT:
+                if(right instanceof Double) return (double)right + 1;
+                break;
+            case NUMBER_DECREMENT:
+                if(right instanceof Double) return (double)right - 1;
+                break;
+            case GENERIC:
+                return unary(expr, right);
+        }
+
+        expr.state = expr.state == UNSPECIALIZED
+            ? specialize(expr.operator.type, right)
+            : GENERIC;
+        return unary(expr, right);
+    }
+
+    @Override
+    public Object visitPostfixExpr(Expr.Postfix expr) {
+        if(isStep(expr.operator) && expr.left instanceof Expr.Variable) {
+            return step((Expr.Variable)expr.left, expr.operator);
+        }
+
+        Object left = evaluate(expr.left);
+
+        switch(expr.state) {
+            case NUMBER_INCREMENT:
+            case NUMBER_DECREMENT:
+                if(left instanceof Double) return left;
+                break;
+            case GENERIC:
+                return postfix(expr, left);
+        }
+
+        expr.state = expr.state == UNSPECIALIZED
+            ? specialize(expr.operator.type, left)
+            : GENERIC;
+        return postfix(expr, left);
+    }
+
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+        Expr.Variable var = declared(expr);
+        return lookUpVariable(var.name, var.depth, var.slot);
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        return assign(expr, true);
+    }
+
+    private Object binary(Expr.Binary expr, Object left, Object right) {
         switch(expr.operator.type) {
             case SLASH:
                 requireNumberOperands(expr.operator, left, right);
@@ -201,36 +381,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    @Override
-    public Object visitLogicalExpr(Expr.Logical expr) {
-        Object left = evaluate(expr.left);
-
-        switch(expr.operator.type) {
-            case OR:
-                if(isTruthy(left)) return left;
-                break;
-            case AND:
-                if(!isTruthy(left)) return left;
-                break;
-        }
-
-        return evaluate(expr.right);
-    }
-
-    @Override
-    public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr.expression);
-    }
-
-    @Override
-    public Object visitLiteralExpr(Expr.Literal expr) {
-        return expr.value;
-    }
-
-    @Override
-    public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-
+    private Object unary(Expr.Unary expr, Object right) {
         switch(expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
@@ -239,52 +390,246 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return -(double)right;
             case MINUS_MINUS:
                 requireNumberOperand(expr.operator, right);
-                if(expr.right instanceof Expr.Variable)
-                    decrement(((Expr.Variable)expr.right).name);
-                
                 return (double)right - 1;
             case PLUS_PLUS:
                 requireNumberOperand(expr.operator, right);
-                if(expr.right instanceof Expr.Variable)
-                    increment(((Expr.Variable)expr.right).name);
                 return (double)right + 1;
         }
 
         return null;
     }
 
-    @Override
-    public Object visitPostfixExpr(Expr.Postfix expr) {
-        Object left = evaluate(expr.left);
-
+    private Object postfix(Expr.Postfix expr, Object left) {
         switch(expr.operator.type) {
             case MINUS_MINUS:
-                requireNumberOperand(expr.operator, left);
-                if(expr.left instanceof Expr.Variable)
-                    decrement(((Expr.Variable)expr.left).name);
-                return (double)left;
             case PLUS_PLUS:
                 requireNumberOperand(expr.operator, left);
-                if(expr.left instanceof Expr.Variable)
-                    increment(((Expr.Variable)expr.left).name);
-                return (double)left;
+                return left;
         }
 
         return null;
     }
 
-    @Override
-    public Object visitVariableExpr(Expr.Variable expr) {
-        return env.get(expr.name);
+    // Evaluates an expression where a number is expected without boxing
+    // it. Nodes that have only seen numbers and variables holding unboxed
+    // numbers stay on primitive doubles. Any other value is left for
+    // takeNotNumber() and NOT_A_NUMBER is returned in its place.
+    private double evaluateNumber(Expr expr) {
+        if(expr instanceof Expr.Variable) {
+            Expr.Variable var = declared((Expr.Variable)expr);
+            Environment frame = frame(var.depth);
+            if(frame.isNumber(var.slot)) return frame.getNumber(var.slot);
+            return unbox(frame.get(var.name, var.slot));
+        } else if(expr instanceof Expr.Literal) {
+            return unbox(((Expr.Literal)expr).value);
+        } else if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if(isArithmetic(binary.state)) return arithmetic(binary);
+        } else if(expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        }
+
+        return unbox(evaluate(expr));
     }
 
-    @Override
-    public Object visitAssignExpr(Expr.Assign expr) {
+    private double unbox(Object value) {
+        if(value instanceof Double) return (double)value;
+
+        notNumber = value;
+        return NOT_A_NUMBER;
+    }
+
+    // Picks up what evaluateNumber() met if it returned NOT_A_NUMBER, or
+    // NUMBER if the result is a real number.
+    private Object takeNotNumber(double result) {
+        if(result == result || Double.doubleToRawLongBits(result)
+                != Double.doubleToRawLongBits(NOT_A_NUMBER)) return NUMBER;
+
+        Object value = notNumber;
+        notNumber = null;
+        return value;
+    }
+
+    private double arithmetic(Expr.Binary expr) {
+        double l = evaluateNumber(expr.left);
+        Object left = takeNotNumber(l);
+        double r = evaluateNumber(expr.right);
+        Object right = takeNotNumber(r);
+
+        if(left == NUMBER && right == NUMBER) {
+            switch(expr.state) {
+                case NUMBER_ADD: return l + r;
+                case NUMBER_SUBTRACT: return l - r;
+                case NUMBER_MULTIPLY: return l * r;
+                case NUMBER_DIVIDE: if(r != 0.0) return l / r; break;
+            }
+        }
+
+        return unbox(respecialize(expr,
+                    left == NUMBER ? (Object)l : left,
+                    right == NUMBER ? (Object)r : right));
+    }
+
+    private Object comparison(Expr.Binary expr) {
+        double l = evaluateNumber(expr.left);
+        Object left = takeNotNumber(l);
+        double r = evaluateNumber(expr.right);
+        Object right = takeNotNumber(r);
+
+        if(left == NUMBER && right == NUMBER) {
+            switch(expr.state) {
+                case NUMBER_GREATER: return l > r;
+                case NUMBER_GREATER_EQUAL: return l >= r;
+                case NUMBER_LESS: return l < r;
+                case NUMBER_LESS_EQUAL: return l <= r;
+                // Same as Double.equals(), which isEqual() relies on.
+                case NUMBER_EQUAL:
+                    return Double.doubleToLongBits(l)
+                        == Double.doubleToLongBits(r);
+                case NUMBER_NOT_EQUAL:
+                    return Double.doubleToLongBits(l)
+                        != Double.doubleToLongBits(r);
+            }
+        }
+
+        return respecialize(expr,
+                left == NUMBER ? (Object)l : left,
+                right == NUMBER ? (Object)r : right);
+    }
+
+    private static boolean isArithmetic(int state) {
+        return state >= NUMBER_ADD && state <= NUMBER_DIVIDE;
+    }
+
+    private static boolean isComparison(int state) {
+        return state >= NUMBER_GREATER && state <= NUMBER_NOT_EQUAL;
+    }
+
+    private Object assign(Expr.Assign expr, boolean needValue) {
+        if(expr.value instanceof Expr.Binary
+                && isArithmetic(((Expr.Binary)expr.value).state)) {
+            double value = arithmetic((Expr.Binary)expr.value);
+            Object notNumber = takeNotNumber(value);
+
+            if(notNumber == NUMBER) {
+                Expr.Variable outer = outer(expr);
+                if(outer != null) {
+                    frame(outer.depth).assignNumber(
+                            outer.name, outer.slot, value);
+                } else {
+                    frame(expr.depth).assignNumber(expr.name, expr.slot, value);
+                }
+                return needValue ? (Object)value : null;
+            }
+
+            assignTo(expr, notNumber);
+            return notNumber;
+        }
+
         Object value = evaluate(expr.value);
-        env.assign(expr.name, value);
+        assignTo(expr, value);
         return value;
     }
 
+    private void assignTo(Expr.Assign expr, Object value) {
+        Expr.Variable outer = outer(expr);
+        if(outer != null) {
+            assignVariable(outer.name, outer.depth, outer.slot, value);
+        } else {
+            assignVariable(expr.name, expr.depth, expr.slot, value);
+        }
+    }
+
+    private Object respecialize(
+            Expr.Binary expr, Object left, Object right) {
+        if(expr.state == UNSPECIALIZED) {
+            expr.state = specialize(expr.operator.type, left, right);
+        } else if(!(expr.state == NUMBER_DIVIDE && right instanceof Double)) {
+            expr.state = GENERIC;
+        }
+
+        return binary(expr, left, right);
+    }
+
+    // Picks a fast path from the operand types seen on the first
+    // evaluation. A node whose guess later fails goes back to GENERIC for
+    // good rather than flipping between specializations.
+    private static int specialize(
+            TokenType operator, Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) {
+            switch(operator) {
+                case PLUS: return NUMBER_ADD;
+                case MINUS: return NUMBER_SUBTRACT;
+                case STAR: return NUMBER_MULTIPLY;
+                case SLASH: return NUMBER_DIVIDE;
+                case GREATER: return NUMBER_GREATER;
+                case GREATER_EQUAL: return NUMBER_GREATER_EQUAL;
+                case LESS: return NUMBER_LESS;
+                case LESS_EQUAL: return NUMBER_LESS_EQUAL;
+                case EQUAL_EQUAL: return NUMBER_EQUAL;
+                case BANG_EQUAL: return NUMBER_NOT_EQUAL;
+            }
+        }
+
+        if(operator == PLUS
+                && left instanceof String && right instanceof String) {
+            return STRING_CONCAT;
+        }
+
+        return GENERIC;
+    }
+
+    private static int specialize(TokenType operator, Object operand) {
+        if(operand instanceof Double) {
+            switch(operator) {
+                case MINUS: return NUMBER_NEGATE;
+                case PLUS_PLUS: return NUMBER_INCREMENT;
+                case MINUS_MINUS: return NUMBER_DECREMENT;
+            }
+        }
+
+        return GENERIC;
+    }
+
+    // A name that only a for loop under an if or a loop declares means
+    // the variable outside its block until that loop has run.
+    private Expr.Variable declared(Expr.Variable var) {
+        while(var.outer != null && !frame(var.depth).isDefined(var.slot)) {
+            var = var.outer;
+        }
+
+        return var;
+    }
+
+    // Where an assignment goes while its own variable is undeclared, or
+    // null.
+    private Expr.Variable outer(Expr.Assign expr) {
+        if(expr.outer == null || frame(expr.depth).isDefined(expr.slot)) {
+            return null;
+        }
+
+        return declared(expr.outer);
+    }
+
+    private Environment frame(int depth) {
+        if(depth == Resolver.GLOBAL) return globals;
+        return env.ancestor(depth);
+    }
+
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if(depth == Resolver.GLOBAL) return globals.get(name, slot);
+        return env.getAt(depth, name, slot);
+    }
+
+    private void assignVariable(
+            Token name, int depth, int slot, Object value) {
+        if(depth == Resolver.GLOBAL) {
+            globals.assign(name, slot, value);
+        } else {
+            env.assignAt(depth, name, slot, value);
+        }
+    }
+
     private int compareStrings(Token operator, String left, String right) {
         if(left == null || right == null) 
             throw new RuntimeError(operator, "Can't compare to null!");
@@ -292,17 +637,31 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return left.compareTo(right);
     }
 
-    private void increment(Token name) {
-        Object variable = env.get(name);
-        env.assign(name, (double)variable+1);
+    private static boolean isStep(Token operator) {
+        return operator.type == PLUS_PLUS || operator.type == MINUS_MINUS;
     }
 
-    private void decrement(Token name) {
-        Object variable = env.get(name);
-        env.assign(name, (double)variable-1);
+    // ++ and -- on a variable: one frame lookup, one read and one write.
+    // Returns the value before the step.
+    private double step(Expr.Variable var, Token operator) {
+        var = declared(var);
+        Environment frame = frame(var.depth);
+        double value;
+
+        if(frame.isNumber(var.slot)) {
+            value = frame.getNumber(var.slot);
+        } else {
+            Object old = frame.get(var.name, var.slot);
+            requireNumberOperand(operator, old);
+            value = (double)old;
+        }
+
+        frame.setNumber(var.slot,
+                operator.type == PLUS_PLUS ? value + 1 : value - 1);
+        return value;
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if(object == null) return "nil"; 
 
         if(object instanceof Double) {
@@ -357,21 +716,41 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operand must be a number");
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         return Objects.equals(left, right);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if(object == null) return false;
         if(object instanceof Boolean) return (boolean) object;
 
         return true;
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
+    // Evaluates an expression whose value is discarded, which lets
+    // assignments and steps skip boxing their result.
+    private void evaluateForEffect(Expr expr) {
+        if(expr instanceof Expr.Assign) {
+            assign((Expr.Assign)expr, false);
+        } else if(expr instanceof Expr.Postfix
+                && ((Expr.Postfix)expr).left instanceof Expr.Variable
+                && isStep(((Expr.Postfix)expr).operator)) {
+            step((Expr.Variable)((Expr.Postfix)expr).left,
+                    ((Expr.Postfix)expr).operator);
+        } else if(expr instanceof Expr.Unary
+                && ((Expr.Unary)expr).right instanceof Expr.Variable
+                && isStep(((Expr.Unary)expr).operator)) {
+            step((Expr.Variable)((Expr.Unary)expr).right,
+                    ((Expr.Unary)expr).operator);
+        } else {
+            evaluate(expr);
+        }
+    }
+
     private void execute(Stmt statement) {
         statement.accept(this);
     }
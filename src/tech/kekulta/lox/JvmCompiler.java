@@ -0,0 +1,603 @@
+package tech.kekulta.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import static tech.kekulta.lox.TokenType.*;
+import static tech.kekulta.lox.ClassBuilder.*;
+
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static class Script {
+        final byte[] bytes;
+        final Object[] constants;
+        final int methods;
+
+        Script(byte[] bytes, Object[] constants, int methods) {
+            this.bytes = bytes;
+            this.constants = constants;
+            this.methods = methods;
+        }
+    }
+
+    private static class Loop {
+        final int continueLabel;
+        final int breakLabel;
+
+        Loop(int continueLabel, int breakLabel) {
+            this.continueLabel = continueLabel;
+            this.breakLabel = breakLabel;
+        }
+    }
+
+    static final String CLASS_NAME = "tech/kekulta/lox/LoxScript";
+    static final String METHOD_DESC = "([Ljava/lang/Object;"
+        + "Ltech/kekulta/lox/Environment;)Ljava/lang/Object;";
+
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "Ltech/kekulta/lox/Token;";
+    private static final String ENVIRONMENT = "Ltech/kekulta/lox/Environment;";
+    private static final String RUNTIME = internalName(JvmRuntime.class);
+    private static final String INTERPRETER = "tech/kekulta/lox/Interpreter";
+
+    // Local 0 holds the constants array, local 1 the global Environment.
+    private static final int CONSTANTS = 0;
+    private static final int GLOBALS = 1;
+    private static final int FIRST_LOCAL = 2;
+
+    // Top-level statements are packed into methods of about this size so
+    // that no method runs into the 64K code limit.
+    private static final int METHOD_SIZE = 16 * 1024;
+
+    private final List<Object> constants = new ArrayList<Object>();
+    private final Map<Object, Integer> constantIndex =
+        new HashMap<Object, Integer>();
+    private final Stack<Loop> loops = new Stack<Loop>();
+    private final Stack<Integer> frames = new Stack<Integer>();
+    private ClassBuilder builder;
+    private ClassBuilder.Code code;
+    private int nextLocal = 0;
+
+    // Throws ClassBuilder.TooLargeException when the script doesn't fit.
+    Script compile(List<Stmt> statements) {
+        begin();
+
+        int methods = 0;
+        for(Stmt statement : statements) {
+            if(code == null || code.length() > METHOD_SIZE) {
+                if(code != null) endMethod();
+                code = builder.method("s" + methods++, METHOD_DESC, 2);
+            }
+
+            compile(statement);
+        }
+
+        if(code != null) endMethod();
+        return new Script(builder.build(), constants.toArray(), methods);
+    }
+
+    Script compileExpression(Expr expression) {
+        begin();
+
+        code = builder.method("s0", METHOD_DESC, 2);
+        compile(expression);
+        code.op(ARETURN, -1);
+
+        return new Script(builder.build(), constants.toArray(), 1);
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        code.jump(GOTO, loops.peek().breakLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        code.jump(GOTO, loops.peek().continueLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        code.invokeStatic(RUNTIME, "print", "(" + OBJECT + ")V", -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+
+        if(frames.isEmpty()) {
+            code.local(ALOAD, GLOBALS);
+            code.pushInt(stmt.slot);
+            code.invokeStatic(RUNTIME, "defineGlobal",
+                    "(" + OBJECT + ENVIRONMENT + "I)V", -3);
+        } else {
+            code.invokeStatic(RUNTIME, "define",
+                    "(" + OBJECT + ")" + OBJECT, 0);
+            code.local(ASTORE, local(0, stmt.slot));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.slots == 0) {
+            undefine(stmt.undeclared);
+            compileBlock(stmt.statements);
+            return null;
+        }
+
+        int base = nextLocal;
+        frames.push(base);
+        nextLocal += stmt.slots;
+
+        // The verifier wants every local assigned before any path reads it.
+        for(int slot = 0; slot < stmt.slots; slot++) {
+            code.op(ACONST_NULL, 1);
+            code.local(ASTORE, local(0, slot));
+        }
+        undefine(stmt.undeclared);
+
+        compileBlock(stmt.statements);
+
+        frames.pop();
+        nextLocal = base;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int elseLabel = code.newLabel();
+        int endLabel = code.newLabel();
+
+        compileCondition(stmt.condition);
+        code.jump(IFEQ, elseLabel);
+        compile(stmt.thenBranch);
+
+        if(stmt.elseBranch != null) {
+            code.jump(GOTO, endLabel);
+            code.mark(elseLabel);
+            compile(stmt.elseBranch);
+        } else {
+            code.mark(elseLabel);
+        }
+
+        code.mark(endLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int startLabel = code.newLabel();
+        int exitLabel = code.newLabel();
+
+        code.mark(startLabel);
+        compileCondition(stmt.condition);
+        code.jump(IFEQ, exitLabel);
+
+        loops.push(new Loop(startLabel, exitLabel));
+        compile(stmt.body);
+        loops.pop();
+
+        code.jump(GOTO, startLabel);
+        code.mark(exitLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        int startLabel = code.newLabel();
+        int continueLabel = code.newLabel();
+        int exitLabel = code.newLabel();
+
+        if(stmt.initializer != null) compile(stmt.initializer);
+
+        code.mark(startLabel);
+        if(stmt.condition != null) {
+            compileCondition(stmt.condition);
+            code.jump(IFEQ, exitLabel);
+        }
+
+        loops.push(new Loop(continueLabel, exitLabel));
+        compile(stmt.body);
+        loops.pop();
+
+        code.mark(continueLabel);
+        if(stmt.increment != null) {
+            compile(stmt.increment);
+            code.op(POP, -1);
+        }
+        code.jump(GOTO, startLabel);
+
+        code.mark(exitLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        int elseLabel = code.newLabel();
+        int endLabel = code.newLabel();
+
+        compileCondition(expr.condition);
+        code.jump(IFEQ, elseLabel);
+        compile(expr.thenBranch);
+        code.jump(GOTO, endLabel);
+
+        code.setDepth(code.depth() - 1);
+        code.mark(elseLabel);
+        compile(expr.elseBranch);
+        code.mark(endLabel);
+
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        switch(expr.operator.type) {
+            case COMMA:
+                compile(expr.left);
+                code.op(POP, -1);
+                compile(expr.right);
+                return null;
+            case SLASH: arithmetic("divide", expr); return null;
+            case STAR: arithmetic("multiply", expr); return null;
+            case MINUS: arithmetic("subtract", expr); return null;
+            case PLUS: arithmetic("add", expr); return null;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                compileCondition(expr);
+                box();
+                return null;
+        }
+
+        // Interpreter yields nil for operators it doesn't know.
+        compile(expr.left);
+        compile(expr.right);
+        code.op(POP, -1);
+        code.op(POP, -1);
+        code.op(ACONST_NULL, 1);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        int endLabel = code.newLabel();
+
+        compile(expr.left);
+        code.op(DUP, 1);
+        isTruthy();
+        code.jump(expr.operator.type == OR ? IFNE : IFEQ, endLabel);
+        code.op(POP, -1);
+        compile(expr.right);
+        code.mark(endLabel);
+
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if(expr.value instanceof Boolean) {
+            code.getStatic("java/lang/Boolean",
+                    (boolean)expr.value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;");
+        } else {
+            constant(expr.value);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if(expr.operator.type == BANG) {
+            compileCondition(expr);
+            box();
+            return null;
+        }
+
+        compile(expr.right);
+        token(expr.operator);
+
+        switch(expr.operator.type) {
+            case MINUS:
+                unaryOp("negate");
+                break;
+            case MINUS_MINUS:
+                unaryOp("decrement");
+                store(expr.right);
+                break;
+            case PLUS_PLUS:
+                unaryOp("increment");
+                store(expr.right);
+                break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitPostfixExpr(Expr.Postfix expr) {
+        compile(expr.left);
+        code.op(DUP, 1);
+        token(expr.operator);
+
+        switch(expr.operator.type) {
+            case MINUS_MINUS:
+                unaryOp("decrement");
+                break;
+            case PLUS_PLUS:
+                unaryOp("increment");
+                break;
+        }
+
+        store(expr.left);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        // The outer variable until a for loop under an if or a loop has
+        // declared this one.
+        if(expr.outer != null) {
+            int depth = code.depth();
+            int declared = code.newLabel();
+            int done = code.newLabel();
+
+            code.local(ALOAD, local(expr.depth, expr.slot));
+            code.getStatic(RUNTIME, "UNDECLARED", OBJECT);
+            code.jump(IF_ACMPNE, declared);
+            compile(expr.outer);
+            code.jump(GOTO, done);
+
+            code.mark(declared);
+            code.setDepth(depth);
+            load(expr);
+            code.mark(done);
+            return null;
+        }
+
+        load(expr);
+        return null;
+    }
+
+    private void load(Expr.Variable expr) {
+        if(expr.depth == Resolver.GLOBAL) {
+            code.local(ALOAD, GLOBALS);
+            token(expr.name);
+            code.pushInt(expr.slot);
+            code.invokeVirtual("tech/kekulta/lox/Environment", "get",
+                    "(" + TOKEN + "I)" + OBJECT, -2);
+            return;
+        }
+
+        int depth = code.depth();
+        int initialized = code.newLabel();
+
+        code.local(ALOAD, local(expr.depth, expr.slot));
+        code.op(DUP, 1);
+        code.getStatic(RUNTIME, "UNINITIALIZED", OBJECT);
+        code.jump(IF_ACMPNE, initialized);
+        token(expr.name);
+        code.invokeStatic(RUNTIME, "uninitialized",
+                "(" + TOKEN + ")Ltech/kekulta/lox/RuntimeError;", 0);
+        code.op(ATHROW, -1);
+
+        code.mark(initialized);
+        code.setDepth(depth + 1);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        store(expr.name, expr.depth, expr.slot, expr.outer);
+        return null;
+    }
+
+    private void compileBlock(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            compile(statement);
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Leaves an int on the stack, skipping the Boolean box where possible.
+    private void compileCondition(Expr expr) {
+        if(expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            String compare = null;
+
+            switch(binary.operator.type) {
+                case GREATER: compare = "greater"; break;
+                case GREATER_EQUAL: compare = "greaterEqual"; break;
+                case LESS: compare = "less"; break;
+                case LESS_EQUAL: compare = "lessEqual"; break;
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    compile(binary.left);
+                    compile(binary.right);
+                    code.invokeStatic(INTERPRETER, "isEqual",
+                            "(" + OBJECT + OBJECT + ")Z", -1);
+                    if(binary.operator.type == BANG_EQUAL) not();
+                    return;
+            }
+
+            if(compare != null) {
+                compile(binary.left);
+                compile(binary.right);
+                token(binary.operator);
+                code.invokeStatic(RUNTIME, compare,
+                        "(" + OBJECT + OBJECT + TOKEN + ")Z", -2);
+                return;
+            }
+        }
+
+        if(expr instanceof Expr.Unary
+                && ((Expr.Unary)expr).operator.type == BANG) {
+            compile(((Expr.Unary)expr).right);
+            isTruthy();
+            not();
+            return;
+        }
+
+        compile(expr);
+        isTruthy();
+    }
+
+    // A compile that threw TooLargeException may have left loops and
+    // frames on the stacks.
+    private void begin() {
+        builder = new ClassBuilder(CLASS_NAME);
+        code = null;
+        constants.clear();
+        constantIndex.clear();
+        loops.clear();
+        frames.clear();
+        nextLocal = 0;
+    }
+
+    private void endMethod() {
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+    }
+
+    private void arithmetic(String name, Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        token(expr.operator);
+        code.invokeStatic(RUNTIME, name,
+                "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT, -2);
+    }
+
+    private void unaryOp(String name) {
+        code.invokeStatic(RUNTIME, name,
+                "(" + OBJECT + TOKEN + ")" + OBJECT, -1);
+    }
+
+    // ++ and -- write back only when applied directly to a variable. The
+    // stored value stays on the stack.
+    private void store(Expr target) {
+        if(target instanceof Expr.Variable) {
+            Expr.Variable var = (Expr.Variable)target;
+            store(var.name, var.depth, var.slot, var.outer);
+        }
+    }
+
+    private void store(Token name, int depth, int slot, Expr.Variable outer) {
+        if(outer != null) {
+            int stack = code.depth();
+            int declared = code.newLabel();
+            int done = code.newLabel();
+
+            code.local(ALOAD, local(depth, slot));
+            code.getStatic(RUNTIME, "UNDECLARED", OBJECT);
+            code.jump(IF_ACMPNE, declared);
+            store(outer);
+            code.jump(GOTO, done);
+
+            code.mark(declared);
+            code.setDepth(stack);
+            store(name, depth, slot, null);
+            code.mark(done);
+            return;
+        }
+
+        if(depth == Resolver.GLOBAL) {
+            code.local(ALOAD, GLOBALS);
+            token(name);
+            code.pushInt(slot);
+            code.invokeStatic(RUNTIME, "setGlobal",
+                    "(" + OBJECT + ENVIRONMENT + TOKEN + "I)" + OBJECT, -3);
+        } else {
+            code.op(DUP, 1);
+            code.local(ASTORE, local(depth, slot));
+        }
+    }
+
+    // Slots a block declares only on some runs start out undeclared.
+    private void undefine(int[] slots) {
+        if(slots == null) return;
+
+        for(int slot : slots) {
+            code.getStatic(RUNTIME, "UNDECLARED", OBJECT);
+            code.local(ASTORE, local(0, slot));
+        }
+    }
+
+    private void isTruthy() {
+        code.invokeStatic(INTERPRETER, "isTruthy", "(" + OBJECT + ")Z", 0);
+    }
+
+    private void not() {
+        code.op(ICONST_1, 1);
+        code.op(IXOR, -1);
+    }
+
+    private void box() {
+        code.invokeStatic("java/lang/Boolean", "valueOf",
+                "(Z)Ljava/lang/Boolean;", 0);
+    }
+
+    private void token(Token token) {
+        constant(token);
+        code.checkCast("tech/kekulta/lox/Token");
+    }
+
+    private void constant(Object value) {
+        Integer index = constantIndex.get(value);
+        if(index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+
+        code.local(ALOAD, CONSTANTS);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+    }
+
+    private int local(int depth, int slot) {
+        return FIRST_LOCAL + frames.get(frames.size() - 1 - depth) + slot;
+    }
+
+    // Referring to the class itself keeps it in the build; generated code
+    // is the only other caller.
+    private static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+}
@@ -0,0 +1,90 @@
+package tech.kekulta.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs scripts as hidden classes so HotSpot can JIT them like any other
+// Java code. Anything JvmCompiler can't fit into a class file runs on the
+// tree-walking Interpreter instead, which shares the same globals.
+class JvmEngine implements Engine {
+    private static final MethodType TYPE = MethodType.methodType(
+            Object.class, Object[].class, Environment.class);
+
+    private final Interpreter fallback = new Interpreter();
+    private final JvmCompiler compiler = new JvmCompiler();
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        JvmCompiler.Script script;
+        List<MethodHandle> methods;
+
+        try {
+            script = compiler.compile(statements);
+            methods = load(script);
+        } catch(ClassBuilder.TooLargeException | LinkageError e) {
+            fallback.interpret(statements);
+            return;
+        }
+
+        try {
+            for(MethodHandle method : methods) {
+                invoke(method, script);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    @Override
+    public String interpret(Stmt.Expression stmt) {
+        JvmCompiler.Script script;
+        MethodHandle method;
+
+        try {
+            script = compiler.compileExpression(stmt.expression);
+            method = load(script).get(0);
+        } catch(ClassBuilder.TooLargeException | LinkageError e) {
+            return fallback.interpret(stmt);
+        }
+
+        try {
+            return Interpreter.stringify(invoke(method, script));
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+
+        return null;
+    }
+
+    private List<MethodHandle> load(JvmCompiler.Script script) {
+        List<MethodHandle> methods = new ArrayList<MethodHandle>();
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClass(script.bytes, true);
+
+            for(int i = 0; i < script.methods; i++) {
+                methods.add(lookup.findStatic(
+                            lookup.lookupClass(), "s" + i, TYPE));
+            }
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return methods;
+    }
+
+    private Object invoke(MethodHandle method, JvmCompiler.Script script) {
+        try {
+            return (Object)method.invokeExact(
+                    script.constants, fallback.globals);
+        } catch(RuntimeException | Error e) {
+            throw e;
+        } catch(Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
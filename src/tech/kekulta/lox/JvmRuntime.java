@@ -0,0 +1,124 @@
+package tech.kekulta.lox;
+
+// Operations called from classes generated by JvmCompiler. They mirror
+// Interpreter exactly and are small enough for HotSpot to inline.
+final class JvmRuntime {
+    static final Object UNINITIALIZED = new Object();
+    // Held by a local that only a for loop under an if or a loop declares,
+    // until the loop runs.
+    static final Object UNDECLARED = new Object();
+
+    private JvmRuntime() {}
+
+    static Object define(Object value) {
+        return value == null ? UNINITIALIZED : value;
+    }
+
+    static void defineGlobal(Object value, Environment globals, int slot) {
+        globals.define(slot, value);
+    }
+
+    static RuntimeError uninitialized(Token name) {
+        return new RuntimeError(name,
+                "Can't access uninitialized variable '" + name.lexeme + "'.");
+    }
+
+    static Object setGlobal(
+            Object value, Environment globals, Token name, int slot) {
+        globals.assign(name, slot, value);
+        return value;
+    }
+
+    static void print(Object value) {
+        Printer.print(Interpreter.stringify(value));
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if(left instanceof Double && right instanceof Double)
+            return (double)left + (double)right;
+
+        if(left instanceof String || right instanceof String)
+            return Interpreter.stringify(left) + Interpreter.stringify(right);
+
+        throw new RuntimeError(operator,
+                "Operands must be two numbers or strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        requireNumbers(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        requireNumbers(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        requireNumbers(operator, left, right);
+        if((double)right == 0.0) {
+            throw new RuntimeError(operator, "Division by zero!");
+        }
+
+        return (double)left / (double)right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        if(left instanceof Double && right instanceof Double)
+            return (double)left > (double)right;
+        return compareStrings(left, right, operator) > 0;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        if(left instanceof Double && right instanceof Double)
+            return (double)left >= (double)right;
+        return compareStrings(left, right, operator) >= 0;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        if(left instanceof Double && right instanceof Double)
+            return (double)left < (double)right;
+        return compareStrings(left, right, operator) < 0;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        if(left instanceof Double && right instanceof Double)
+            return (double)left <= (double)right;
+        return compareStrings(left, right, operator) <= 0;
+    }
+
+    static Object negate(Object right, Token operator) {
+        requireNumber(operator, right);
+        return -(double)right;
+    }
+
+    static Object increment(Object value, Token operator) {
+        requireNumber(operator, value);
+        return (double)value + 1;
+    }
+
+    static Object decrement(Object value, Token operator) {
+        requireNumber(operator, value);
+        return (double)value - 1;
+    }
+
+    private static int compareStrings(
+            Object left, Object right, Token operator) {
+        if(left instanceof String && right instanceof String)
+            return ((String)left).compareTo((String)right);
+
+        throw new RuntimeError(operator,
+                "Only numbers and Strings can be compared.");
+    }
+
+    private static void requireNumbers(
+            Token operator, Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be numbers");
+    }
+
+    private static void requireNumber(Token operator, Object operand) {
+        if(operand instanceof Double) return;
+        throw new RuntimeError(operator, "Operand must be a number");
+    }
+}
@@ -0,0 +1,158 @@
+package tech.kekulta.lox;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// The statements of a block a lazy Parser only brace-matched, kept as its
+// tokens until something reads them. Most of a big script tends to sit in
+// blocks that never run, which then cost a copy of their tokens instead
+// of an AST and a pass of the Resolver.
+//
+// Reading the list parses it. The Resolver leaves a block it reaches
+// unparsed to be resolved later, from a copy of the scopes around it, and
+// the Interpreter has it resolved before running it the first time.
+//
+// Its syntax errors are reported when it is parsed, which can be long
+// after the script started. Blocks that never ran are parsed once the
+// statement holding them is done, so their errors are still reported.
+class LazyBlock extends AbstractList<Stmt> {
+    // Stops the script at a block that doesn't parse. Its errors have
+    // already been reported.
+    static class SyntaxError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final int loopDepth;
+
+    // The tokens after '{' through the closing '}'.
+    private final int count;
+    private int[] types;
+    private int[] lines;
+    private String[] lexemes;
+    private Object[] literals;
+
+    private List<Stmt> statements = null;
+    private boolean hadError = false;
+    // The blocks in this one its Parser left unparsed.
+    private List<LazyBlock> skipped = Collections.emptyList();
+    // Set while the block waits to be resolved.
+    private Resolver resolver = null;
+    // Set if its statements are to be optimized once parsed.
+    private Optimizer optimizer = null;
+
+    LazyBlock(int loopDepth, int count, int[] types, int[] lines,
+            String[] lexemes, Object[] literals) {
+        this.loopDepth = loopDepth;
+        this.count = count;
+        this.types = Arrays.copyOf(types, count);
+        this.lines = Arrays.copyOf(lines, count);
+        this.lexemes = Arrays.copyOf(lexemes, count);
+        this.literals = Arrays.copyOf(literals, count);
+    }
+
+    @Override
+    public Stmt get(int index) {
+        return parse().get(index);
+    }
+
+    @Override
+    public int size() {
+        return parse().size();
+    }
+
+    boolean isParsed() {
+        return statements != null;
+    }
+
+    void defer(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    void optimize(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    // The statements of `block`, which holds this list, resolved first if
+    // the Resolver left them. They are a plain list, which is quicker to
+    // run through. A block that doesn't parse stops the script, as it
+    // would have before running had it been parsed eagerly.
+    List<Stmt> resolved(Stmt.Block block) {
+        parse();
+        if(hadError) throw new SyntaxError();
+
+        if(resolver != null) {
+            Resolver resolver = this.resolver;
+            this.resolver = null;
+            resolver.resolveDeferred(block);
+        }
+        return statements;
+    }
+
+    // Parses this block and the ones in it, unless that has been done, so
+    // that syntax errors are reported in blocks that never ran.
+    void check() {
+        // It won't run after this, so it needn't be optimized.
+        optimizer = null;
+        parse();
+        for(LazyBlock block : skipped) {
+            block.check();
+        }
+    }
+
+    // Errors are reported as the block is parsed, so they can be told
+    // apart from the rest of the script's.
+    private List<Stmt> parse() {
+        if(statements != null) return statements;
+
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+
+        Parser parser = new Parser(new Replay(), true);
+        List<Stmt> parsed = parser.parseBlock(loopDepth);
+        skipped = parser.skipped();
+
+        this.hadError = Lox.hadError;
+        Lox.hadError |= hadError;
+        statements = parsed != null ? parsed : Collections.emptyList();
+        if(optimizer != null && !this.hadError) {
+            statements = optimizer.optimize(statements);
+        }
+
+        // Not needed again.
+        types = null;
+        lines = null;
+        lexemes = null;
+        literals = null;
+        return statements;
+    }
+
+    // Hands the kept tokens back out, then EOF on the closing brace's line.
+    private class Replay extends Scanner {
+        private int index = -1;
+
+        @Override
+        TokenType nextToken() {
+            if(index < count) index++;
+            return index < count ? TYPES[types[index]] : TokenType.EOF;
+        }
+
+        @Override
+        String lexeme() {
+            return index < count ? lexemes[index] : null;
+        }
+
+        @Override
+        Object literal() {
+            return index < count ? literals[index] : null;
+        }
+
+        @Override
+        int line() {
+            return lines[Math.min(index, count - 1)];
+        }
+    }
+}
@@ -3,22 +3,93 @@ package tech.kekulta.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
 
 public class Lox {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
-    static Interpreter interpreter = new Interpreter();
+    static Resolver resolver = new Resolver();
+    static Optimizer optimizer = new Optimizer();
+    static Engine engine = new Interpreter();
+    // Run each top-level declaration as soon as it is parsed instead of
+    // parsing the whole script first.
+    static boolean stream = false;
+    // Scan the script straight from a memory-mapped file.
+    static boolean mmap = false;
+    // Lex the mapped script in chunks on all cores before parsing.
+    static boolean parallel = false;
+    // Load the parsed script from the AST cache when it hasn't changed.
+    static boolean cache = false;
+    // Parse a block's statements only when the Interpreter first runs it.
+    // Syntax errors in a block are then reported late: when it runs, or
+    // after the statement holding it if it never does. Without the flag a
+    // script is checked in full before it starts.
+    static boolean lazy = false;
+    // Fold constant expressions and drop code that can't run before
+    // resolving.
+    static boolean optimize = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            Printer.println("Usage: jlox [script]");
-        } else if(args.length == 1) {
-            runFile(args[0]);
+        String script = null;
+
+        for(String arg : args) {
+            if(arg.equals("--jvm")) {
+                engine = new JvmEngine();
+            } else if(arg.equals("--closure")) {
+                engine = new ClosureCompiler();
+            } else if(arg.equals("--stream")) {
+                stream = true;
+            } else if(arg.equals("--mmap")) {
+                mmap = true;
+            } else if(arg.equals("--parallel")) {
+                parallel = true;
+            } else if(arg.equals("--cache")) {
+                cache = true;
+            } else if(arg.equals("--lazy")) {
+                lazy = true;
+            } else if(arg.equals("--optimize")) {
+                optimize = true;
+            } else if(arg.startsWith("--") || script != null) {
+                Printer.println("Usage: jlox [--jvm|--closure] "
+                        + "[--stream] [--lazy] [--optimize] "
+                        + "[--mmap|--parallel|--cache] [script]");
+                return;
+            } else {
+                script = arg;
+            }
+        }
+
+        // The compiling engines go through every block before running any,
+        // and the AST cache saves every block, so neither can wait.
+        if(lazy && (!(engine instanceof Interpreter) || cache)) {
+            Printer.println("--lazy works only with the tree-walking "
+                    + "interpreter and without --cache.");
+            System.exit(64);
+        }
+
+        // A cached script is read whole to be hashed and is run only once
+        // it has been parsed in full.
+        if(cache && (mmap || parallel || stream)) {
+            Printer.println("--cache can't be used with --mmap, --parallel "
+                    + "or --stream.");
+            System.exit(64);
+        }
+
+        // Both read the mapped file, each its own way.
+        if(mmap && parallel) {
+            Printer.println("--mmap and --parallel can't be used together.");
+            System.exit(64);
+        }
+
+        if(script != null) {
+            runFile(script);
         } else {
             runPromt();
         }
@@ -46,13 +117,53 @@ public class Lox {
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path file = Paths.get(path);
+
+        // Files over 2 GB can't be mapped in one piece.
+        if(cache) {
+            runCached(Files.readAllBytes(file));
+        } else if(parallel && Files.size(file) <= Integer.MAX_VALUE) {
+            run(ParallelScanner.open(file));
+        } else if(mmap && Files.size(file) <= Integer.MAX_VALUE) {
+            run(MappedScanner.open(file));
+        } else {
+            // The Scanner does its own buffering and reads as the Parser
+            // asks.
+            try(Reader reader = new InputStreamReader(
+                        Files.newInputStream(file),
+                        Charset.defaultCharset())) {
+                run(new Scanner(reader));
+            } catch(UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
 
         if(hadError) System.exit(65);
         if(hadRuntimeError) System.exit(70);
     }
 
+    // The whole script has to be read to be hashed, and a miss is parsed
+    // from the same bytes.
+    private static void runCached(byte[] source) {
+        Charset charset = Charset.defaultCharset();
+        Path entry = AstCache.entry(AstCache.directory(), source, charset);
+
+        List<Stmt> statements = AstCache.load(entry);
+        if(statements == null) {
+            Parser parser = new Parser(
+                    new Scanner(new String(source, charset)));
+            statements = parser.parse();
+            if(hadError) return;
+
+            AstCache.save(entry, statements);
+        }
+
+        statements = optimized(statements);
+        resolver.resolve(statements);
+
+        engine.interpret(statements);
+    }
+
     private static void runPromt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -69,35 +180,69 @@ public class Lox {
 
             if (line == null) continue;
 
-            Scanner scanner = new Scanner(line);
-            List<Token> tokens = scanner.scanTokens();
-
-            Parser parser = new Parser(tokens);
+            Parser parser = new Parser(new Scanner(line));
             List<Stmt> statements = parser.parseRepl();
             if(hadError) continue;
 
-            if(statements.size() == 1 
-                    && statements.get(0) instanceof Stmt.Expression) {
+            // Decided before optimizing, which can turn a statement into
+            // a bare expression.
+            boolean echo = statements.size() == 1
+                && statements.get(0) instanceof Stmt.Expression;
+
+            statements = optimized(statements);
+            resolver.resolve(statements);
+
+            if(echo) {
                 String result = 
-                    interpreter.interpret((Stmt.Expression)statements.get(0));
+                    engine.interpret((Stmt.Expression)statements.get(0));
                 if(result != null) {
                     Printer.println(result);
                 }
             } else {
-                interpreter.interpret(statements);
+                engine.interpret(statements);
             }
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static void run(Scanner scanner) {
+        if(stream) {
+            runStreaming(scanner);
+            return;
+        }
 
-        Parser parser = new Parser(tokens);
+        Parser parser = new Parser(scanner, lazy);
         List<Stmt> statements = parser.parse();
-        if(hadError) return;
+        if(!hadError) {
+            statements = optimized(statements);
+            resolver.resolve(statements);
+
+            engine.interpret(statements);
+        }
+        parser.checkSkipped();
+    }
+
+    // Statements run as they are parsed and are dropped afterwards, so the
+    // whole AST is never held at once. Once any error is reported nothing
+    // more runs, but parsing goes on so every syntax error is still shown.
+    private static void runStreaming(Scanner scanner) {
+        Parser parser = new Parser(scanner, lazy);
+
+        while(parser.hasNext()) {
+            Stmt statement = parser.next();
+            if(!hadError && !hadRuntimeError) {
+                List<Stmt> statements =
+                    optimized(Collections.singletonList(statement));
+                resolver.resolve(statements);
+                if(!hadError) engine.interpret(statements);
+            }
+            parser.checkSkipped();
+        }
+    }
 
-        interpreter.interpret(statements);
+    // The cache keeps scripts as they were parsed, so they are optimized
+    // after loading.
+    private static List<Stmt> optimized(List<Stmt> statements) {
+        return optimize ? optimizer.optimize(statements) : statements;
     }
 
     private static void report(int line, String where, String message) {
@@ -0,0 +1,159 @@
+package tech.kekulta.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Scans a UTF-8 file mapped into memory as bytes, so it never goes through
+// a charset decoder. Everything Lox gives meaning to is ASCII and UTF-8
+// never uses ASCII bytes inside a multi-byte sequence, so the other bytes
+// can be skipped as they are. Text is only decoded when a token needs its
+// lexeme or an error has to show a character.
+//
+// The mapping is copied into a small window in bulk rather than read a
+// byte at a time, since every ByteBuffer.get() is checked on its own.
+class MappedScanner extends Scanner {
+    private final ByteBuffer file;
+
+    private byte[] buffer = new byte[8192];
+    private int limit = 0;
+
+    MappedScanner(ByteBuffer file) {
+        this.file = file;
+    }
+
+    static MappedScanner open(Path path) throws IOException {
+        return new MappedScanner(map(path));
+    }
+
+    static ByteBuffer map(Path path) throws IOException {
+        // The mapping stays valid after the channel is closed.
+        try(FileChannel channel = FileChannel.open(path)) {
+            return channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    int tokenOffset() {
+        return file.position() - limit + start;
+    }
+
+    @Override
+    char advance() {
+        current++;
+        return (char)(buffer[current - 1] & 0xff);
+    }
+
+    @Override
+    char charAt(int index) {
+        return (char)(buffer[index] & 0xff);
+    }
+
+    @Override
+    char peek() {
+        if(isAtEnd()) return '\0';
+        return (char)(buffer[current] & 0xff);
+    }
+
+    @Override
+    char peekNext() {
+        if(!load(1)) return '\0';
+        return (char)(buffer[current + 1] & 0xff);
+    }
+
+    @Override
+    boolean match(char expected) {
+        if(isAtEnd()) return false;
+        if(expected != (buffer[current] & 0xff)) return false;
+
+        current++;
+        return true;
+    }
+
+    @Override
+    boolean isAtEnd() {
+        return !load(0);
+    }
+
+    @Override
+    String text(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    // `c` is only the first byte of the character, which starts the token.
+    // Take the rest of its sequence and report what it decodes to, one
+    // error per char as the Reader-based Scanner would.
+    @Override
+    void unexpected(char c) {
+        int length = c >= 0xf0 ? 4 : c >= 0xe0 ? 3 : c >= 0xc0 ? 2 : 1;
+        while(current - start < length && load(0)
+                && (buffer[current] & 0xc0) == 0x80) {
+            current++;
+        }
+
+        String text = text(start, current);
+        for(int i = 0; i < text.length(); i++) {
+            super.unexpected(text.charAt(i));
+        }
+    }
+
+    @Override
+    int skip(int run, boolean slide) {
+        boolean[] skipped = SKIPPED[run];
+        int lines = 0;
+
+        while(load(0)) {
+            byte[] buffer = this.buffer;
+            int end = limit;
+            int i = current;
+            if(VECTORS != null) {
+                long vectors = VECTORS.skip(buffer, i, end, run);
+                i = (int)vectors;
+                lines += (int)(vectors >>> 32);
+            }
+            while(i < end) {
+                int c = buffer[i] & 0xff;
+                if(!skipped[c < 128 ? c : 128]) break;
+                if(c == '\n') lines++;
+                i++;
+            }
+
+            current = i;
+            if(slide) start = i;
+            if(i < end) break;
+        }
+
+        return lines;
+    }
+
+    private boolean load(int ahead) {
+        while(current + ahead >= limit) {
+            if(!file.hasRemaining()) return false;
+            read();
+        }
+
+        return true;
+    }
+
+    private void read() {
+        // Everything before the current token has been scanned already.
+        if(start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            current -= start;
+            start = 0;
+        }
+
+        if(limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        int count = Math.min(buffer.length - limit, file.remaining());
+        file.get(buffer, limit, count);
+        limit += count;
+    }
+}
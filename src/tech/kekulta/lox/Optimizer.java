@@ -0,0 +1,275 @@
+package tech.kekulta.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Rewrites a parsed script so that work whose result is known before it
+// runs isn't done on every run. Operators whose operands are literals
+// become the literal they evaluate to, and a branch or loop whose
+// condition is a literal loses the code that can never run.
+//
+// Values are worked out by the Interpreter, so they come out just as they
+// would have at run time. An operator that fails, like a division by
+// zero, is left in place to report its error when it runs.
+//
+// It runs before the Resolver. Nodes it changes are built anew, and those
+// it doesn't are kept as they are.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private final Interpreter interpreter = new Interpreter();
+
+    // The statements left, with those that can't run dropped.
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<Stmt>(statements.size());
+        for(Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if(result != null) optimized.add(result);
+        }
+
+        return optimized;
+    }
+
+    // A statement that can't run is null.
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // For places that need a statement.
+    private Stmt optimizeBody(Stmt stmt) {
+        Stmt result = optimize(stmt);
+        return result != null
+            ? result : new Stmt.Block(Collections.<Stmt>emptyList());
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if(expression == stmt.expression) return stmt;
+
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if(expression == stmt.expression) return stmt;
+
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if(initializer == stmt.initializer) return stmt;
+
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        // Optimized once it is parsed, if it ever is.
+        if(stmt.statements instanceof LazyBlock
+                && !((LazyBlock)stmt.statements).isParsed()) {
+            ((LazyBlock)stmt.statements).optimize(this);
+            return stmt;
+        }
+
+        return new Stmt.Block(optimize(stmt.statements));
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if(condition instanceof Expr.Literal) {
+            Stmt branch = isTruthy(condition)
+                ? stmt.thenBranch : stmt.elseBranch;
+            return branch != null ? optimize(branch) : null;
+        }
+
+        Stmt elseBranch = stmt.elseBranch != null
+            ? optimizeBody(stmt.elseBranch) : null;
+        return new Stmt.If(condition, optimizeBody(stmt.thenBranch),
+                elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if(isFalse(condition)) return null;
+
+        return new Stmt.While(condition, optimizeBody(stmt.body));
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = stmt.initializer != null
+            ? optimize(stmt.initializer) : null;
+        Expr condition = stmt.condition != null
+            ? optimize(stmt.condition) : null;
+
+        // Only the initializer runs.
+        if(isFalse(condition)) {
+            return initializer;
+        }
+
+        // A loop without a condition doesn't test one.
+        if(condition instanceof Expr.Literal && isTruthy(condition)) {
+            condition = null;
+        }
+
+        Expr increment = stmt.increment != null
+            ? optimize(stmt.increment) : null;
+        return new Stmt.For(initializer, condition, increment,
+                optimizeBody(stmt.body));
+    }
+
+    @Override
+    public Expr visitConditionalExpr(Expr.Conditional expr) {
+        Expr condition = optimize(expr.condition);
+
+        if(condition instanceof Expr.Literal) {
+            return isTruthy(condition)
+                ? optimize(expr.thenBranch)
+                : optimize(expr.elseBranch);
+        }
+
+        Expr thenBranch = optimize(expr.thenBranch);
+        Expr elseBranch = optimize(expr.elseBranch);
+        if(condition == expr.condition && thenBranch == expr.thenBranch
+                && elseBranch == expr.elseBranch) {
+            return expr;
+        }
+
+        return new Expr.Conditional(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // A literal on the left of a comma does nothing.
+        if(expr.operator.type == TokenType.COMMA
+                && left instanceof Expr.Literal) {
+            return right;
+        }
+
+        if(left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Expr folded = fold(new Expr.Binary(left, expr.operator, right));
+            if(folded != null) return folded;
+        }
+
+        if(left == expr.left && right == expr.right) return expr;
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        // Other groupings stay, as '++' steps a variable only when it
+        // isn't grouped.
+        if(expression instanceof Expr.Literal) return expression;
+        if(expression == expr.expression) return expr;
+
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if(right instanceof Expr.Literal) {
+            Expr folded = fold(new Expr.Unary(expr.operator, right));
+            if(folded != null) return folded;
+        }
+
+        if(right == expr.right) return expr;
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitPostfixExpr(Expr.Postfix expr) {
+        Expr left = optimize(expr.left);
+
+        if(left instanceof Expr.Literal) {
+            Expr folded = fold(new Expr.Postfix(left, expr.operator));
+            if(folded != null) return folded;
+        }
+
+        if(left == expr.left) return expr;
+
+        return new Expr.Postfix(left, expr.operator);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if(value == expr.value) return expr;
+
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+
+        if(left instanceof Expr.Literal) {
+            boolean shortCircuits = expr.operator.type == TokenType.OR
+                ? isTruthy(left) : !isTruthy(left);
+            return shortCircuits ? left : optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if(left == expr.left && right == expr.right) return expr;
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    // The literal `expr` evaluates to, or null if evaluating it fails.
+    // The node evaluated is thrown away either way, as evaluating it
+    // leaves the Interpreter's notes on it.
+    private Expr fold(Expr expr) {
+        try {
+            return new Expr.Literal(interpreter.evaluate(expr));
+        } catch(RuntimeError error) {
+            return null;
+        }
+    }
+
+    private static boolean isTruthy(Expr literal) {
+        return Interpreter.isTruthy(((Expr.Literal)literal).value);
+    }
+
+    private static boolean isFalse(Expr condition) {
+        return condition instanceof Expr.Literal && !isTruthy(condition);
+    }
+}
@@ -0,0 +1,295 @@
+package tech.kekulta.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Lexes a mapped file in chunks on the common ForkJoinPool, a few chunks
+// ahead of the Parser, and hands the tokens out in order like any other
+// Scanner.
+//
+// Every chunk but the first is lexed on the guess that it starts between
+// tokens, which is wrong when it starts inside a string or a comment. Each
+// chunk lexes up to the first token that starts past its end, and that is
+// where the next chunk has to pick up. A token is lexed the same way from
+// wherever it starts, so once a guessed chunk has a token starting exactly
+// there it agrees with the sequential Scanner from then on, with lines off
+// by a constant. A chunk that never gets in step is lexed again from that
+// point while stitching.
+class ParallelScanner extends Scanner {
+    private static final TokenType[] TYPES = TokenType.values();
+    // Small chunks keep the tokens lexed ahead few enough to die young;
+    // larger ones spent more time in GC than they saved.
+    private static final int CHUNK = 1 << 14;
+    // Chunks lexed ahead of the Parser, which bounds the tokens held.
+    private static final int AHEAD =
+        ForkJoinPool.getCommonPoolParallelism() + 1;
+
+    private final ByteBuffer file;
+    private final ArrayDeque<ForkJoinTask<Chunk>> pending =
+        new ArrayDeque<ForkJoinTask<Chunk>>();
+    // Where the next chunk to lex starts.
+    private int submitted = 0;
+
+    // Where and on which line the sequential Scanner would find the next
+    // token after the segment being read.
+    private int position = 0;
+    private int line = 1;
+
+    // The chunk's tokens being handed out.
+    private Segment segment;
+    private int index = -1;
+    private int reported = 0;
+
+    ParallelScanner(ByteBuffer file) {
+        this.file = file;
+
+        for(int i = 0; i < AHEAD; i++) {
+            submit();
+        }
+
+        segment = stitch();
+    }
+
+    static ParallelScanner open(Path path) throws IOException {
+        return new ParallelScanner(MappedScanner.map(path));
+    }
+
+    @Override
+    TokenType nextToken() {
+        index++;
+
+        while(segment != null && index >= segment.tokens.count) {
+            // The errors left were found before the next segment's first
+            // token.
+            report(Integer.MAX_VALUE);
+            segment = stitch();
+            if(segment != null) {
+                index = segment.from;
+                reported = 0;
+            }
+        }
+
+        if(segment == null) return TokenType.EOF;
+
+        report(index);
+        return TYPES[segment.tokens.types[index]];
+    }
+
+    @Override
+    String lexeme() {
+        return segment == null ? null : segment.tokens.lexemes[index];
+    }
+
+    @Override
+    Object literal() {
+        return segment == null ? null : segment.tokens.literals[index];
+    }
+
+    @Override
+    int line() {
+        return segment == null
+            ? line
+            : segment.tokens.lines[index] + segment.offset;
+    }
+
+    // Reports the segment's errors found before its token `upTo`.
+    private void report(int upTo) {
+        Tokens tokens = segment.tokens;
+        while(reported < tokens.errors && tokens.errorTokens[reported] <= upTo) {
+            if(tokens.errorTokens[reported] >= segment.fromError) {
+                Lox.error(tokens.errorLines[reported] + segment.offset,
+                        tokens.errorMessages[reported]);
+            }
+            reported++;
+        }
+    }
+
+    private void submit() {
+        int length = file.limit();
+        if(submitted == length) return;
+
+        int from = submitted;
+        int to = length - from <= CHUNK ? length : nextLine(from + CHUNK);
+        pending.add(ForkJoinPool.commonPool().submit(
+                    () -> lex(file, from, to)));
+        submitted = to;
+    }
+
+    // Lines the next chunk up with the sequential Scanner, or returns null
+    // at the end of the file.
+    private Segment stitch() {
+        while(!pending.isEmpty()) {
+            Chunk chunk = pending.poll().join();
+            submit();
+
+            // The first chunk is lexed from the start, like the sequential
+            // Scanner, so all of it counts.
+            if(chunk.from == 0) {
+                position = chunk.stop;
+                line = chunk.stopLine;
+                return new Segment(chunk.tokens, 0, 0, 0);
+            }
+
+            // An earlier token runs past all of this chunk.
+            if(position >= chunk.to) continue;
+
+            int k = chunk.find(position);
+            if(k < 0) {
+                chunk = lex(file, position, chunk.to);
+                k = 0;
+            }
+
+            // Errors found before token k belong to the previous chunk,
+            // which lexed that stretch from the right place.
+            int offset = line - chunk.lineAt(k);
+            position = chunk.stop;
+            line = chunk.stopLine + offset;
+            return new Segment(chunk.tokens, k, offset, k + 1);
+        }
+
+        return null;
+    }
+
+    // Chunks end on a new line, which is between tokens far more often
+    // than a random byte is.
+    private int nextLine(int from) {
+        int i = from;
+        while(i < file.limit() && file.get(i) != '\n') i++;
+        return Math.min(i + 1, file.limit());
+    }
+
+    private static Chunk lex(ByteBuffer file, int from, int to) {
+        Chunk chunk = new Chunk(file.duplicate().position(from), from, to);
+        chunk.lex();
+        return chunk;
+    }
+
+    // Lexes from wherever its buffer is positioned and keeps the tokens
+    // that start before `to`, along with any errors, instead of reporting
+    // them.
+    private static class Chunk extends MappedScanner {
+        final int from;
+        final int to;
+        final Tokens tokens;
+
+        // The first token that starts at or past `to`.
+        int stop;
+        int stopLine;
+
+        Chunk(ByteBuffer file, int from, int to) {
+            super(file);
+            this.from = from;
+            this.to = to;
+            // Scripts average a little over three bytes a token.
+            this.tokens = new Tokens((to - from) / 3 + 16);
+        }
+
+        void lex() {
+            for(;;) {
+                TokenType type = nextToken();
+                int start = tokenOffset();
+                if(type == TokenType.EOF || start >= to) {
+                    stop = start;
+                    stopLine = line();
+                    return;
+                }
+
+                tokens.add(type.ordinal(), line(), start, lexeme(), literal());
+            }
+        }
+
+        // Index of the token that starts at `offset`, count if that's the
+        // stop token, or -1 if no token starts there.
+        int find(int offset) {
+            if(offset == stop) return tokens.count;
+
+            int i = Arrays.binarySearch(tokens.starts, 0, tokens.count, offset);
+            return i >= 0 ? i : -1;
+        }
+
+        int lineAt(int index) {
+            return index < tokens.count ? tokens.lines[index] : stopLine;
+        }
+
+        @Override
+        void error(int line, String message) {
+            tokens.addError(tokens.count, line, message);
+        }
+    }
+
+    // A chunk's tokens from `from` on, with lines moved by `offset`, and
+    // its errors from before token `fromError` on.
+    private static class Segment {
+        final Tokens tokens;
+        final int from;
+        final int offset;
+        final int fromError;
+
+        Segment(Tokens tokens, int from, int offset, int fromError) {
+            this.tokens = tokens;
+            this.from = from;
+            this.offset = offset;
+            this.fromError = fromError;
+        }
+    }
+
+    // Tokens packed into parallel arrays, and the errors found before each.
+    private static class Tokens {
+        int count = 0;
+        int[] types;
+        int[] lines;
+        int[] starts;
+        String[] lexemes;
+        Object[] literals;
+
+        int errors = 0;
+        int[] errorTokens = new int[0];
+        int[] errorLines = new int[0];
+        String[] errorMessages = new String[0];
+
+        Tokens(int capacity) {
+            types = new int[capacity];
+            lines = new int[capacity];
+            starts = new int[capacity];
+            lexemes = new String[capacity];
+            literals = new Object[capacity];
+        }
+
+        void add(int type, int line, int start, String lexeme, Object literal) {
+            if(count == types.length) {
+                int capacity = count * 2;
+                types = Arrays.copyOf(types, capacity);
+                lines = Arrays.copyOf(lines, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                lexemes = Arrays.copyOf(lexemes, capacity);
+                literals = Arrays.copyOf(literals, capacity);
+            }
+
+            types[count] = type;
+            lines[count] = line;
+            starts[count] = start;
+            lexemes[count] = lexeme;
+            literals[count] = literal;
+            count++;
+        }
+
+        void addError(int token, int line, String message) {
+            if(errors == errorTokens.length) {
+                int capacity = Math.max(8, errors * 2);
+                errorTokens = Arrays.copyOf(errorTokens, capacity);
+                errorLines = Arrays.copyOf(errorLines, capacity);
+                errorMessages = Arrays.copyOf(errorMessages, capacity);
+            }
+
+            errorTokens[errors] = token;
+            errorLines[errors] = line;
+            errorMessages[errors] = message;
+            errors++;
+        }
+    }
+}
@@ -3,21 +3,68 @@ package tech.kekulta.lox;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.function.Supplier;
 
 import static tech.kekulta.lox.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {};
 
+    // How tightly each binary operator binds, by TokenType ordinal, with
+    // 0 for tokens that aren't one.
+    private static final int LOGIC_OR = 1;
+    private static final int LOGIC_AND = 2;
+    private static final int EQUALITY = 3;
+    private static final int COMPARISON = 4;
+    private static final int TERM = 5;
+    private static final int FACTOR = 6;
+    private static final int[] PRECEDENCE =
+        new int[TokenType.values().length];
+    // Blocks that close within this many tokens are parsed right away
+    // even by a lazy Parser, straight from the Scanner as an eager one
+    // would. They gain little from waiting, and once parsed they can
+    // share the frame around them.
+    private static final int LAZY_TOKENS = 64;
+
+    static {
+        PRECEDENCE[OR.ordinal()] = LOGIC_OR;
+        PRECEDENCE[AND.ordinal()] = LOGIC_AND;
+        PRECEDENCE[BANG_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[EQUAL_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[GREATER.ordinal()] = COMPARISON;
+        PRECEDENCE[GREATER_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[LESS.ordinal()] = COMPARISON;
+        PRECEDENCE[LESS_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[MINUS.ordinal()] = TERM;
+        PRECEDENCE[PLUS.ordinal()] = TERM;
+        PRECEDENCE[SLASH.ordinal()] = FACTOR;
+        PRECEDENCE[STAR.ordinal()] = FACTOR;
+    }
+
     private boolean allowExpression = false;
     private boolean foundExpression = false;
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
     private int current = 0;
     private int loopDepth = 0;
+    // Only brace-match blocks, leaving their statements to LazyBlock.
+    private final boolean lazy;
+    // The tokens of the block being skipped, reused from one to the next.
+    private int[] skippedTypes;
+    private int[] skippedLines;
+    private String[] skippedLexemes;
+    private Object[] skippedLiterals;
+    // The blocks skipBlock() left to LazyBlock, in the order they were met.
+    private final List<LazyBlock> skipped = new ArrayList<LazyBlock>();
+
+    Parser(Scanner scanner) {
+        this(scanner, false);
+    }
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    Parser(Scanner scanner, boolean lazy) {
+        // A lazy Parser looks ahead to find where short blocks close.
+        this.tokens = lazy
+            ? new TokenBuffer(scanner, LAZY_TOKENS) : new TokenBuffer(scanner);
+        this.lazy = lazy;
+        tokens.load(0);
     }
 
     List<Stmt> parseRepl() {
@@ -32,6 +79,23 @@ class Parser {
         return statements;
     }
 
+    // For parsing one top-level declaration at a time. next() returns
+    // null for a declaration with a syntax error.
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    // Reads no further than the first token of the next declaration,
+    // which is also the last one taken from the Scanner.
+    Stmt next() {
+        return declaration();
+    }
+
+    // Tokens put into the AST from here on are added to `made`.
+    void collect(List<Token> made) {
+        tokens.collect(made);
+    }
+
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<Stmt>();
 
@@ -41,6 +105,30 @@ class Parser {
         return statements;
     }
 
+    List<LazyBlock> skipped() {
+        return skipped;
+    }
+
+    // Parses the blocks left to LazyBlock so far, which won't run again,
+    // so that syntax errors are reported in those that never ran.
+    void checkSkipped() {
+        for(LazyBlock block : skipped) {
+            block.check();
+        }
+        skipped.clear();
+    }
+
+    // Parses the tokens a lazy Parser set aside for a block, from the one
+    // after its '{' through its '}', in a loop `loopDepth` deep.
+    List<Stmt> parseBlock(int loopDepth) {
+        this.loopDepth = loopDepth;
+        try {
+            return blockStatements();
+        } catch(ParseError e) {
+            return null;
+        }
+    }
+
     private Stmt declaration() {
         try {
             if(match(VAR)) return varDeclaration();
@@ -54,8 +142,8 @@ class Parser {
 
     private Stmt varDeclaration() {
 
-        Token name = consume(IDENTIFIER,
-                "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if(match(EQUAL)) {
@@ -154,6 +242,30 @@ class Parser {
     }
 
     private Stmt block() {
+        if(!lazy || isShortBlock()) return new Stmt.Block(blockStatements());
+
+        return new Stmt.Block(skipBlock());
+    }
+
+    // Whether the block ends, at its '}' or at the end of the script,
+    // within LAZY_TOKENS tokens from here.
+    private boolean isShortBlock() {
+        int depth = 0;
+        for(int i = 0; i < LAZY_TOKENS; i++) {
+            tokens.load(current + i);
+            TokenType type = tokens.type(current + i);
+            if(type == EOF) return true;
+            if(type == LEFT_BRACE) depth++;
+            if(type == RIGHT_BRACE) {
+                if(depth == 0) return true;
+                depth--;
+            }
+        }
+
+        return false;
+    }
+
+    private List<Stmt> blockStatements() {
         List<Stmt> statements = new ArrayList<Stmt>();
 
         while(!isAtEnd() && !check(RIGHT_BRACE)) {
@@ -161,7 +273,51 @@ class Parser {
         }
 
         consume(RIGHT_BRACE, "Expect ';' after block.");
-        return new Stmt.Block(statements);
+        return statements;
+    }
+
+    // Keeps the tokens up to the matching '}' without parsing them. A
+    // block that never closes is reported as blockStatements() would.
+    private LazyBlock skipBlock() {
+        if(skippedTypes == null) {
+            skippedTypes = new int[256];
+            skippedLines = new int[256];
+            skippedLexemes = new String[256];
+            skippedLiterals = new Object[256];
+        }
+
+        int count = 0;
+        int depth = 0;
+        while(!isAtEnd()) {
+            TokenType type = tokens.type(current);
+            if(type == LEFT_BRACE) depth++;
+            if(type == RIGHT_BRACE) depth--;
+
+            if(count == skippedTypes.length) {
+                int capacity = count * 2;
+                skippedTypes = Arrays.copyOf(skippedTypes, capacity);
+                skippedLines = Arrays.copyOf(skippedLines, capacity);
+                skippedLexemes = Arrays.copyOf(skippedLexemes, capacity);
+                skippedLiterals = Arrays.copyOf(skippedLiterals, capacity);
+            }
+
+            skippedTypes[count] = type.ordinal();
+            skippedLines[count] = tokens.line(current);
+            skippedLexemes[count] = tokens.lexeme(current);
+            skippedLiterals[count] = tokens.literal(current);
+            count++;
+            advance();
+
+            if(depth < 0) {
+                LazyBlock block = new LazyBlock(loopDepth, count,
+                        skippedTypes, skippedLines, skippedLexemes,
+                        skippedLiterals);
+                skipped.add(block);
+                return block;
+            }
+        }
+
+        throw error(peek(), "Expect ';' after block.");
     }
 
     private Stmt printStatement() {
@@ -203,11 +359,7 @@ class Parser {
     }
 
     private Expr or() {
-        return logicLeftAssociative(() -> (and()), OR);
-    }
-
-    private Expr and() {
-        return logicLeftAssociative(() -> (equality()), AND);
+        return binary(LOGIC_OR);
     }
 
     private Expr conditional() {
@@ -226,41 +378,59 @@ class Parser {
     }
 
     private Expr comma() {
-        return binaryLeftAssociative(() -> (equality()), COMMA);
-    }
+        Expr expr = binary(EQUALITY);
 
-    private Expr equality() {
-        return binaryLeftAssociative(
-                () -> (comparison()), BANG_EQUAL, EQUAL_EQUAL);
-    }
+        while(match(COMMA)) {
+            Token operator = previous();
+            Expr right = binary(EQUALITY);
+            expr = new Expr.Binary(expr, operator, right);
+        }
 
-    private Expr comparison() {
-        return binaryLeftAssociative(() -> (term()),
-                GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+        return expr;
     }
 
-    private Expr term() {
-        return binaryLeftAssociative(() -> (factor()), MINUS, PLUS);
-    }
+    // Parses a run of operands joined by binary operators that bind at
+    // least as tightly as `min`. Each operator takes the tighter ones to
+    // its right as its right operand, and all of them associate left.
+    private Expr binary(int min) {
+        Expr expr = unary();
 
-    private Expr factor() {
-        return binaryLeftAssociative(() -> (unary()), SLASH, STAR);
-    }
+        for(;;) {
+            int precedence = PRECEDENCE[tokens.type(current).ordinal()];
+            if(precedence < min) return expr;
 
-    private Expr unary() {
-        if(match(BANG, MINUS, MINUS_MINUS, PLUS_PLUS)) {
+            advance();
             Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+            Expr right = binary(precedence + 1);
+            if(precedence <= LOGIC_AND) {
+                expr = new Expr.Logical(expr, operator, right);
+            } else {
+                expr = new Expr.Binary(expr, operator, right);
+            }
         }
+    }
 
-        return postfix();
+    private Expr unary() {
+        switch(tokens.type(current)) {
+            case BANG:
+            case MINUS:
+            case MINUS_MINUS:
+            case PLUS_PLUS:
+                advance();
+                Token operator = previous();
+                Expr right = unary();
+                return new Expr.Unary(operator, right);
+
+            default:
+                return postfix();
+        }
     }
 
     private Expr postfix() {
         Expr expr = primary();
 
-        if(match(MINUS_MINUS, PLUS_PLUS)) {
+        if(check(MINUS_MINUS) || check(PLUS_PLUS)) {
+            advance();
             Token operator = previous();
             return new Expr.Postfix(expr, operator);
         }
@@ -269,76 +439,51 @@ class Parser {
     }
 
     private Expr primary() {
-        if(match(FALSE)) return new Expr.Literal(false);
-        if(match(TRUE)) return new Expr.Literal(true);
-        if(match(NIL)) return new Expr.Literal(null);
-
-        if(match(NUMBER, STRING)) return new Expr.Literal(previous().literal);
-        if(match(IDENTIFIER)) return new Expr.Variable(previous());
-        if(match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after an expression.");
-            return new Expr.Grouping(expr);
-        }
-
-        if(errorPrefix(() -> (equality()), BANG_EQUAL, EQUAL_EQUAL) != null) {
-            return null;
-        }
-
-        if(errorPrefix(() -> (comparison()),
-                    GREATER, GREATER_EQUAL, LESS, LESS_EQUAL) != null) {
-            return null;
-        }
-
-        if(errorPrefix(() -> (term()), PLUS) != null) {
-            return null;
-        }
-
-        if(errorPrefix(() -> (factor()), SLASH, STAR) != null) {
-            return null;
+        TokenType type = tokens.type(current);
+        switch(type) {
+            case FALSE:
+                advance();
+                return new Expr.Literal(false);
+            case TRUE:
+                advance();
+                return new Expr.Literal(true);
+            case NIL:
+                advance();
+                return new Expr.Literal(null);
+
+            case NUMBER:
+            case STRING:
+                advance();
+                return new Expr.Literal(tokens.literal(current - 1));
+
+            case IDENTIFIER:
+                advance();
+                return new Expr.Variable(previous());
+
+            case LEFT_PAREN:
+                advance();
+                Expr expr = expression();
+                consume(RIGHT_PAREN, "Expect ')' after an expression.");
+                return new Expr.Grouping(expr);
         }
 
-        throw error(peek(), "Expect expression.");
-    }
-
-    private Expr errorPrefix(
-            Supplier<Expr> exprSupplier, TokenType... types) {
-        if(match(types)) {
+        // Error productions: a binary operator with no left-hand operand.
+        // Its right-hand one is still parsed, at its own precedence, and
+        // if that is missing its left-hand operand too the error is left
+        // to the token after it. Minus is always unary here, and `and` and
+        // `or` have none.
+        int precedence = PRECEDENCE[type.ordinal()];
+        if(precedence >= EQUALITY) {
+            advance();
             error(previous(), "Missing left-hand operand.");
-            return exprSupplier.get();
+            if(binary(precedence) != null) return null;
         }
 
-        return null;
-    }
-
-    private Expr logicLeftAssociative(
-            Supplier<Expr> exprSupplier, TokenType... types) {
-        Expr expr = exprSupplier.get();
-
-        while(match(types)) {
-            Token operator = previous();
-            Expr right = exprSupplier.get();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr binaryLeftAssociative(
-            Supplier<Expr> exprSupplier, TokenType... types) {
-        Expr expr = exprSupplier.get();
-
-        while(match(types)) {
-            Token operator = previous();
-            Expr right = exprSupplier.get();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
+        throw error(peek(), "Expect expression.");
     }
 
-    private boolean match(TokenType... types) {
-        if(check(types)) {
+    private boolean match(TokenType type) {
+        if(check(type)) {
             advance();
             return true;
         }
@@ -346,59 +491,36 @@ class Parser {
         return false;
     }
 
-    private Token advance() {
-        if(!isAtEnd()) current++;
-        return previous();
-    }
-
-    private boolean checkNext(TokenType... types) {
-        if(isAtEnd()) return false;
-
-        for(TokenType type : types) {
-            if(peekNext().type == type) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    private boolean check(TokenType... types) {
-        if(isAtEnd()) return false;
-
-        for(TokenType type : types) {
-            if(peek().type == type) {
-                return true;
-            }
+    private void advance() {
+        if(!isAtEnd()) {
+            current++;
+            tokens.load(current);
         }
-
-        return false;
     }
 
     private boolean check(TokenType type) {
         if(isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
+    // Tokens are only materialized for the AST and for error messages.
     private Token peek() {
-        return tokens.get(current);
-    }
-
-    private Token peekNext() {
-        if(isAtEnd()) return peek();
-        return tokens.get(current + 1);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
-    private Token consume(TokenType type, String message) {
-        if(check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if(check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
@@ -411,10 +533,10 @@ class Parser {
     private void synchronize() {
         advance();
 
-        if(!isAtEnd() && previous().type == SEMICOLON) return;
+        if(!isAtEnd() && tokens.type(current - 1) == SEMICOLON) return;
 
         while(!isAtEnd()) {
-            switch(peek().type) {
+            switch(tokens.type(current)) {
                 case CLASS:
                 case FOR:
                 case FUN:
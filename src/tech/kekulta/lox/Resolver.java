@@ -0,0 +1,417 @@
+package tech.kekulta.lox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final int GLOBAL = -1;
+
+    // A runtime Environment. Nested blocks are hoisted into the frame of
+    // the outermost block, so one frame can hold several scopes.
+    private static class Frame {
+        int next = 0;
+        int size = 0;
+        // Stands for a frame already running, which can't be given slots.
+        final boolean running;
+
+        Frame(boolean running) {
+            this.running = running;
+        }
+    }
+
+    // Names are keyed by identity: the Scanner interns them.
+    private static class Scope {
+        final Map<String, Integer> slots =
+            new IdentityHashMap<String, Integer>(8);
+        // Slots set aside when the scope begins for names that a for loop
+        // under an if or a loop declares.
+        final Map<String, Integer> reserved =
+            new IdentityHashMap<String, Integer>(2);
+        // Names only such a loop has declared so far. Until it runs, the
+        // name still means the variable outside the scope.
+        final Set<String> undeclared =
+            Collections.newSetFromMap(new IdentityHashMap<String, Boolean>(2));
+        final int frame;
+        final int base;
+
+        Scope(int frame, int base) {
+            this.frame = frame;
+            this.base = base;
+        }
+    }
+
+    // Globals outlive a single run (REPL), so their slots are kept here.
+    private final Map<String, Integer> globals;
+    private final Stack<Frame> frames = new Stack<Frame>();
+    private final Stack<Scope> scopes = new Stack<Scope>();
+    // Ifs and loop bodies around the statement being resolved, counted
+    // from the innermost block.
+    private int branches = 0;
+
+    Resolver() {
+        globals = new IdentityHashMap<String, Integer>();
+    }
+
+    // Sees what `outer` sees now, for a LazyBlock resolved later. The
+    // frames around it are running by then, so it adds nothing to them.
+    private Resolver(Resolver outer) {
+        globals = outer.globals;
+        for(int i = 0; i < outer.frames.size(); i++) {
+            frames.push(new Frame(true));
+        }
+        for(Scope scope : outer.scopes) {
+            Scope copy = new Scope(scope.frame, scope.base);
+            copy.slots.putAll(scope.slots);
+            copy.undeclared.addAll(scope.undeclared);
+            scopes.push(copy);
+        }
+    }
+
+    void resolve(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if(stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+
+        stmt.slot = declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.statements instanceof LazyBlock
+                && !((LazyBlock)stmt.statements).isParsed()) {
+            ((LazyBlock)stmt.statements).defer(new Resolver(this));
+            return null;
+        }
+
+        // Blocks without declarations run in the enclosing environment.
+        if(!declaresVariables(stmt.statements)) {
+            stmt.slots = 0;
+            resolve(stmt.statements);
+            return null;
+        }
+
+        boolean ownFrame = frames.isEmpty() || frames.peek().running;
+        if(ownFrame) frames.push(new Frame(false));
+
+        resolveScope(stmt);
+
+        stmt.slots = ownFrame ? frames.pop().size : 0;
+        return null;
+    }
+
+    // Resolves a LazyBlock the Resolver deferred. It can't add slots to a
+    // frame already running, so it gets a frame of its own if it declares
+    // anything, as do the blocks in it that would otherwise share the
+    // running one.
+    void resolveDeferred(Stmt.Block stmt) {
+        if(!declaresVariables(stmt.statements)) {
+            stmt.slots = 0;
+            resolve(stmt.statements);
+            return;
+        }
+
+        frames.push(new Frame(false));
+        resolveScope(stmt);
+        stmt.slots = frames.pop().size;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        branches++;
+        resolve(stmt.thenBranch);
+        if(stmt.elseBranch != null) resolve(stmt.elseBranch);
+        branches--;
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        branches++;
+        resolve(stmt.body);
+        branches--;
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if(stmt.initializer != null) resolve(stmt.initializer);
+        if(stmt.condition != null) resolve(stmt.condition);
+        if(stmt.increment != null) resolve(stmt.increment);
+        branches++;
+        resolve(stmt.body);
+        branches--;
+        return null;
+    }
+
+    @Override
+    public Void visitConditionalExpr(Expr.Conditional expr) {
+        resolve(expr.condition);
+        resolve(expr.thenBranch);
+        resolve(expr.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitPostfixExpr(Expr.Postfix expr) {
+        resolve(expr.left);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        int scope = scopeOf(expr.name, scopes.size() - 1);
+        expr.depth = depthOf(scope);
+        expr.slot = slotOf(expr.name, scope);
+        expr.outer = outerOf(expr.name, scope);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+
+        int scope = scopeOf(expr.name, scopes.size() - 1);
+        expr.depth = depthOf(scope);
+        expr.slot = slotOf(expr.name, scope);
+        expr.outer = outerOf(expr.name, scope);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void resolveScope(Stmt.Block stmt) {
+        beginScope(stmt);
+        int outerBranches = branches;
+        branches = 0;
+        resolve(stmt.statements);
+        branches = outerBranches;
+        endScope();
+    }
+
+    // A for loop under an if or a loop may or may not have declared its
+    // variable by the time later code in the block runs, and the block may
+    // run more than once. Such names get their slots up front, and the
+    // block marks them undeclared each time it starts.
+    private void beginScope(Stmt.Block stmt) {
+        Frame frame = frames.peek();
+        Scope scope = new Scope(frames.size() - 1, frame.next);
+
+        for(Stmt statement : stmt.statements) {
+            reserve(statement, false, scope);
+        }
+
+        stmt.undeclared = null;
+        if(!scope.reserved.isEmpty()) {
+            stmt.undeclared = new int[scope.reserved.size()];
+            int i = 0;
+            for(int slot : scope.reserved.values()) {
+                stmt.undeclared[i++] = slot;
+            }
+        }
+
+        scopes.push(scope);
+    }
+
+    private void reserve(Stmt stmt, boolean branch, Scope scope) {
+        if(stmt instanceof Stmt.Var) {
+            String name = ((Stmt.Var)stmt).name.lexeme;
+            if(branch && !scope.reserved.containsKey(name)) {
+                Frame frame = frames.peek();
+                scope.reserved.put(name, frame.next++);
+                frame.size = Math.max(frame.size, frame.next);
+            }
+        } else if(stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            reserve(ifStmt.thenBranch, true, scope);
+            if(ifStmt.elseBranch != null) {
+                reserve(ifStmt.elseBranch, true, scope);
+            }
+        } else if(stmt instanceof Stmt.While) {
+            reserve(((Stmt.While)stmt).body, true, scope);
+        } else if(stmt instanceof Stmt.For) {
+            Stmt.For loop = (Stmt.For)stmt;
+            if(loop.initializer != null) {
+                reserve(loop.initializer, branch, scope);
+            }
+            reserve(loop.body, true, scope);
+        }
+    }
+
+    // Slots of a finished scope are free for its siblings to reuse.
+    private void endScope() {
+        frames.peek().next = scopes.pop().base;
+    }
+
+    private boolean declaresVariables(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            if(declaresVariables(statement)) return true;
+        }
+
+        return false;
+    }
+
+    // A for loop declares its variable in the block around it. One under
+    // an if, a while or another loop does so only if it runs, but its
+    // variable still needs a slot in the block's frame.
+    private boolean declaresVariables(Stmt stmt) {
+        if(stmt instanceof Stmt.Var) return true;
+        if(stmt instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If)stmt;
+            return declaresVariables(branch.thenBranch)
+                || (branch.elseBranch != null
+                        && declaresVariables(branch.elseBranch));
+        }
+        if(stmt instanceof Stmt.While) {
+            return declaresVariables(((Stmt.While)stmt).body);
+        }
+        if(stmt instanceof Stmt.For) {
+            Stmt.For loop = (Stmt.For)stmt;
+            return loop.initializer instanceof Stmt.Var
+                || declaresVariables(loop.body);
+        }
+
+        return false;
+    }
+
+    // Redeclaring a name in the same scope reuses its slot.
+    private int declare(Token name) {
+        if(scopes.isEmpty()) return slotOf(name, -1);
+
+        Scope scope = scopes.peek();
+        Integer slot = scope.slots.get(name.lexeme);
+        if(slot == null) {
+            slot = scope.reserved.get(name.lexeme);
+        }
+        if(slot == null) {
+            Frame frame = frames.peek();
+            slot = frame.next++;
+            frame.size = Math.max(frame.size, frame.next);
+        }
+
+        if(branches > 0 && !scope.slots.containsKey(name.lexeme)) {
+            scope.undeclared.add(name.lexeme);
+        } else if(branches == 0) {
+            scope.undeclared.remove(name.lexeme);
+        }
+        scope.slots.put(name.lexeme, slot);
+
+        return slot;
+    }
+
+    // The innermost of the first `from` + 1 scopes that declares `name`,
+    // or -1 for a global.
+    private int scopeOf(Token name, int from) {
+        for(int i = from; i >= 0; i--) {
+            if(scopes.get(i).slots.containsKey(name.lexeme)) return i;
+        }
+
+        return -1;
+    }
+
+    private int depthOf(int scope) {
+        if(scope == -1) return GLOBAL;
+        return frames.size() - 1 - scopes.get(scope).frame;
+    }
+
+    // Unknown globals still get a slot: the Interpreter reports them as
+    // undefined only if the reference is actually executed.
+    private int slotOf(Token name, int scope) {
+        if(scope != -1) return scopes.get(scope).slots.get(name.lexeme);
+
+        Integer slot = globals.get(name.lexeme);
+        if(slot == null) {
+            slot = globals.size();
+            globals.put(name.lexeme, slot);
+        }
+
+        return slot;
+    }
+
+    // What `name` means while it is still undeclared in `scope`, or null
+    // if it is sure to be declared there.
+    private Expr.Variable outerOf(Token name, int scope) {
+        if(scope == -1 || !scopes.get(scope).undeclared.contains(name.lexeme)) {
+            return null;
+        }
+
+        int outerScope = scopeOf(name, scope - 1);
+        Expr.Variable outer = new Expr.Variable(name);
+        outer.depth = depthOf(outerScope);
+        outer.slot = slotOf(name, outerScope);
+        outer.outer = outerOf(name, outerScope);
+        return outer;
+    }
+}
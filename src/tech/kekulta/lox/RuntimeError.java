@@ -4,7 +4,8 @@ class RuntimeError extends RuntimeException {
     final Token token;
 
     RuntimeError(Token token, String message) {
-        super(message);
+        // Only the token's line is ever reported, so skip the stack trace.
+        super(message, null, false, false);
         this.token = token;
     }
 }
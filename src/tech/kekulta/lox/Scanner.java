@@ -1,56 +1,196 @@
 package tech.kekulta.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static tech.kekulta.lox.TokenType.*;
 
+// Pulls tokens from a Reader one at a time. Only a window of the input
+// starting at the current token is kept, so memory doesn't grow with the
+// size of the script. When the input is already a String, literals'
+// lexemes are cut from it only if they are asked for.
 class Scanner {
+  private final Reader reader;
+  // The whole input, when the Scanner was given it as a String.
   private final String source;
-  private final List<Token> tokens = new ArrayList<Token>();
-  private final static Map<String, TokenType> keywords;
 
-  private int start = 0;
-  private int current = 0;
+  private char[] buffer;
+  private int limit = 0;
+  private boolean eof = false;
+  // Chars read and dropped from the front of the window.
+  private int dropped = 0;
+
+  // Offsets into the input held in memory, which subclasses share.
+  int start = 0;
+  int current = 0;
   private int line = 1;
 
-  static {
-    keywords = new HashMap<String, TokenType>();
-
-    keywords.put("and",     AND);
-    keywords.put("class",   CLASS);
-    keywords.put("else",    ELSE);
-    keywords.put("false",   FALSE);
-    keywords.put("for",     FOR);
-    keywords.put("fun",     FUN);
-    keywords.put("if",      IF);
-    keywords.put("nil",     NIL);
-    keywords.put("or",      OR);
-    keywords.put("print",   PRINT);
-    keywords.put("return",  RETURN);
-    keywords.put("super",   SUPER);
-    keywords.put("this",    THIS);
-    keywords.put("true",    TRUE);
-    keywords.put("var",     VAR);
-    keywords.put("while",   WHILE);
-    keywords.put("break",   BREAK);
-    keywords.put("continue",CONTINUE);
+  // The token found by the last nextToken() call. Only identifiers,
+  // numbers and strings carry a lexeme; the rest have a fixed one. With
+  // a source, numbers and strings don't either, see span().
+  private TokenType tokenType;
+  private String tokenLexeme;
+  private Object tokenLiteral;
+  private int tokenLine;
+  private int tokenStartLine;
+
+  // Names this Scanner has seen before, each found again by the hash of
+  // its chars straight from the window, so a repeat allocates nothing.
+  // Only ASCII text is kept, which hashes the same in the window as in a
+  // String. A script has only so many names, so all of them are kept.
+  // Open addressing, kept at most half full. Allocated on first use, as
+  // are the literals, since subclasses that replay tokens never scan any.
+  private String[] pool = null;
+  private int pooled = 0;
+
+  // Number literals seen lately with their values, one per slot by the
+  // hash of their chars. Data scripts hold too many distinct numbers to
+  // pool them all, so a literal just replaces whatever shared its slot.
+  // With a source, where the literal was is kept instead of its text.
+  private static final int NUMBERS = 1024;
+  private String[] numbers = null;
+  private long[] numberSpans = null;
+  private Double[] numberValues = null;
+
+  // String literals seen lately with their values, the same way.
+  private static final int STRINGS = 1024;
+  private String[] strings = null;
+  private long[] stringSpans = null;
+  private String[] stringValues = null;
+
+  // Every power of ten a double holds exactly.
+  private static final double[] POWERS = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+
+  // Runs of chars that skip() can pass over in bulk: blank space, the
+  // rest of a line, the inside of a string and comment text that can't
+  // open or close a comment.
+  static final int SKIP_BLANK = 0;
+  static final int SKIP_LINE = 1;
+  static final int SKIP_STRING = 2;
+  static final int SKIP_COMMENT = 3;
+  // The chars each run passes over, for the scalar loops. Index 128
+  // stands for every non-ASCII char.
+  static final boolean[][] SKIPPED = {
+    charClass(" \r\t\n", false),
+    charClass("\n", true),
+    charClass("\"", true),
+    charClass("\n/*", true),
+  };
+
+  // Passes whole vectors of a run at once on jdk.incubator.vector, see
+  // VectorSkip. Both return the index reached in the low int and the
+  // newlines passed on the way in the high one.
+  interface Vectors {
+    long skip(char[] buffer, int from, int end, int run);
+    long skip(byte[] buffer, int from, int end, int run);
+  }
+
+  // Null unless VectorSkip was built, which only `make vector` does, and
+  // the VM runs with the module. skip() keeps to its scalar loop then.
+  static final Vectors VECTORS = loadVectors();
+
+  private static Vectors loadVectors() {
+    try {
+      return (Vectors)Class.forName("tech.kekulta.lox.VectorSkip")
+          .getDeclaredConstructor().newInstance();
+    } catch(ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  private static boolean[] charClass(String chars, boolean except) {
+    boolean[] skipped = new boolean[129];
+    for(int c = 0; c < skipped.length; c++) {
+      skipped[c] = (chars.indexOf(c) >= 0) != except;
+    }
+
+    return skipped;
   }
 
   Scanner(String source) {
+    this(new StringReader(source), source);
+  }
+
+  Scanner(Reader reader) {
+    this(reader, null);
+  }
+
+  private Scanner(Reader reader, String source) {
+    this.reader = reader;
     this.source = source;
+    this.buffer = new char[8192];
+  }
+
+  // For input that starts partway into a script, on the given line.
+  Scanner(Reader reader, int line) {
+    this(reader);
+    this.line = line;
   }
 
-  List<Token> scanTokens() {
-    while(!isAtEnd()) {
+  // For subclasses that hold the whole input themselves and override the
+  // methods that read characters.
+  Scanner() {
+    this.reader = null;
+    this.source = null;
+  }
+
+  // Scans up to the next token and returns its type. Keeps returning EOF
+  // once the input is exhausted.
+  TokenType nextToken() {
+    tokenType = null;
+
+    while(tokenType == null) {
+      line += skip(SKIP_BLANK, true);
       start = current;
+      tokenStartLine = line;
+      if(isAtEnd()) {
+        setToken(EOF, null, null);
+        break;
+      }
+
       scanToken();
     }
 
-    tokens.add(new Token(EOF, "", null, line));
-    return tokens;
+    return tokenType;
+  }
+
+  String lexeme() {
+    return tokenLexeme;
+  }
+
+  // Where the last token is in the source, for a number or string that
+  // has no lexeme(), which text(span) then cuts.
+  long span() {
+    return (long)(dropped + start) << 32 | (dropped + current);
+  }
+
+  String text(long span) {
+    return source.substring((int)(span >>> 32), (int)span);
+  }
+
+  Object literal() {
+    return tokenLiteral;
+  }
+
+  // The line the last token ends on, and the one it starts on, which
+  // differ for a string that spans lines.
+  int line() {
+    return tokenLine;
+  }
+
+  int startLine() {
+    return tokenStartLine;
+  }
+
+  // Where in the input the last token found by nextToken() starts.
+  int tokenOffset() {
+    return dropped + start;
   }
 
   private void scanToken() {
@@ -97,11 +237,11 @@ class Scanner {
 
       default:
         if(isDigit(c)) {
-          number();
+          number(c);
         } else if(isAlpha(c)) {
           identifier();
         } else {
-          Lox.error(line, "Unexpected character: '" + c + "'");
+          unexpected(c);
         }
         break;
     }
@@ -110,6 +250,10 @@ class Scanner {
   private void multiLineComment() {
       int level = 1;
       while(!isAtEnd()) {
+          // Anything that can't open, close or count in a comment would
+          // just be advanced over.
+          skip(SKIP_COMMENT, true);
+
           if(match('\n')) {
               line++;
           }
@@ -127,64 +271,368 @@ class Scanner {
           if(!isAtEnd()) {
               advance();
           }
+
+          // Comments need no lexeme, so the window can slide past them.
+          start = current;
       };
       
-      Lox.error(line, "Unterminated multi-line comment");
+      error(line, "Unterminated multi-line comment");
   }
 
   private void singleLineComment() {
-      while(peek() != '\n' && !isAtEnd()) advance();
+      skip(SKIP_LINE, true);
       if(!isAtEnd()) line++;
   }
 
   private void identifier() {
     while(isAlphaNumeric(peek())) advance();
 
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if(type == null) type = IDENTIFIER;
+    TokenType type = keyword();
+    if(type != IDENTIFIER) {
+      addToken(type);
+      return;
+    }
 
-    addToken(type);
+    // Names are interned, so they are also the same object across
+    // Scanners, like REPL lines or chunks lexed in parallel, and can be
+    // compared by identity.
+    int slot = slot();
+    if(slot < 0 || pool[slot] == null) {
+      String name = text(start, current).intern();
+      add(slot, name);
+      setToken(IDENTIFIER, name, null);
+    } else {
+      setToken(IDENTIFIER, pool[slot], null);
+    }
   }
 
-  private void number() {
-    while(isDigit(peek())) advance();
+  // Tells keywords from names by their chars in the window, one branch
+  // per letter, without making a String.
+  private TokenType keyword() {
+    switch(charAt(start)) {
+      case 'a': return keyword(1, "nd", AND);
+      case 'b': return keyword(1, "reak", BREAK);
+      case 'c':
+        if(current - start > 1) {
+          switch(charAt(start + 1)) {
+            case 'l': return keyword(2, "ass", CLASS);
+            case 'o': return keyword(2, "ntinue", CONTINUE);
+          }
+        }
+        break;
+      case 'e': return keyword(1, "lse", ELSE);
+      case 'f':
+        if(current - start > 1) {
+          switch(charAt(start + 1)) {
+            case 'a': return keyword(2, "lse", FALSE);
+            case 'o': return keyword(2, "r", FOR);
+            case 'u': return keyword(2, "n", FUN);
+          }
+        }
+        break;
+      case 'i': return keyword(1, "f", IF);
+      case 'n': return keyword(1, "il", NIL);
+      case 'o': return keyword(1, "r", OR);
+      case 'p': return keyword(1, "rint", PRINT);
+      case 'r': return keyword(1, "eturn", RETURN);
+      case 's': return keyword(1, "uper", SUPER);
+      case 't':
+        if(current - start > 1) {
+          switch(charAt(start + 1)) {
+            case 'h': return keyword(2, "is", THIS);
+            case 'r': return keyword(2, "ue", TRUE);
+          }
+        }
+        break;
+      case 'v': return keyword(1, "ar", VAR);
+      case 'w': return keyword(1, "hile", WHILE);
+    }
 
-    if(peek() == '.' && isDigit(peekNext())) {
-      advance();
+    return IDENTIFIER;
+  }
+
+  private TokenType keyword(int from, String rest, TokenType type) {
+    if(current - start != from + rest.length()) return IDENTIFIER;
 
-      while(isDigit(peek())) advance();
+    for(int i = 0; i < rest.length(); i++) {
+      if(charAt(start + from + i) != rest.charAt(i)) return IDENTIFIER;
     }
 
-    addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+    return type;
   }
 
-  private void string() {
-    while(peek() != '"' && !isAtEnd()) {
-      if(peek() == '\n') line++;
+  // The hash String.hashCode(), which the Strings cache, gives the text
+  // in [start, current), or -1 if it isn't ASCII. Text that does hash to
+  // -1 is just never kept.
+  private int hash() {
+    int hash = 0;
+    for(int i = start; i < current; i++) {
+      char c = charAt(i);
+      if(c >= 128) return -1;
+      hash = 31 * hash + c;
+    }
+
+    return hash;
+  }
+
+  // The pool slot holding the text in [start, current), the empty slot
+  // where it belongs, or -1 if it can't be kept.
+  private int slot() {
+    int hash = hash();
+    if(hash == -1) return -1;
+
+    if(pool == null) pool = new String[64];
+
+    int mask = pool.length - 1;
+    int slot = hash & mask;
+    while(pool[slot] != null) {
+      if(pool[slot].hashCode() == hash && isPooled(pool[slot])) break;
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  // Whether the text at `span` in the source is the text in [start,
+  // current).
+  private boolean isSpan(long span) {
+    int from = (int)(span >>> 32);
+    if((int)span - from != current - start) return false;
+
+    for(int i = 0; i < current - start; i++) {
+      if(source.charAt(from + i) != charAt(start + i)) return false;
+    }
+
+    return true;
+  }
+
+  private boolean isPooled(String text) {
+    if(text.length() != current - start) return false;
+
+    for(int i = 0; i < text.length(); i++) {
+      if(text.charAt(i) != charAt(start + i)) return false;
+    }
+
+    return true;
+  }
+
+  private void add(int slot, String text) {
+    if(slot < 0) return;
+
+    pool[slot] = text;
+    if(++pooled * 2 > pool.length) {
+      rehash();
+    }
+  }
+
+  private void rehash() {
+    String[] oldPool = pool;
+    pool = new String[oldPool.length * 2];
+
+    int mask = pool.length - 1;
+    for(int i = 0; i < oldPool.length; i++) {
+      if(oldPool[i] == null) continue;
+
+      int slot = oldPool[i].hashCode() & mask;
+      while(pool[slot] != null) slot = (slot + 1) & mask;
+      pool[slot] = oldPool[i];
+    }
+  }
+
+  // Works the value out while reading the digits, so most literals
+  // never reach parseDouble().
+  private void number(char first) {
+    long mantissa = first - '0';
+    int digits = mantissa == 0 ? 0 : 1;
+    // Digits after the dot, or -1 before one.
+    int decimals = -1;
+    int hash = first;
+    for(;;) {
+      char c = peek();
+      if(c == '.' && decimals < 0 && isDigit(peekNext())) {
+        advance();
+        hash = 31 * hash + c;
+        decimals = 0;
+        continue;
+      }
+
+      if(!isDigit(c)) break;
+
       advance();
+      hash = 31 * hash + c;
+      // Only overflows past 18 digits, which parseDouble() handles.
+      if(mantissa != 0 || c != '0') digits++;
+      mantissa = mantissa * 10 + (c - '0');
+      if(decimals >= 0) decimals++;
+    }
+
+    if(numberValues == null) {
+      if(source != null) {
+        numberSpans = new long[NUMBERS];
+      } else {
+        numbers = new String[NUMBERS];
+      }
+      numberValues = new Double[NUMBERS];
+    }
+
+    int slot = hash & (NUMBERS - 1);
+    if(source != null) {
+      if(numberValues[slot] == null || !isSpan(numberSpans[slot])) {
+        numberSpans[slot] = span();
+        numberValues[slot] = value(mantissa, digits, decimals);
+      }
+      setToken(NUMBER, null, numberValues[slot]);
+      return;
+    }
+
+    String text = numbers[slot];
+    if(text != null && text.hashCode() == hash && isPooled(text)) {
+      setToken(NUMBER, text, numberValues[slot]);
+      return;
     }
 
+    Double value = value(mantissa, digits, decimals);
+    text = text(start, current);
+    numbers[slot] = text;
+    numberValues[slot] = value;
+    setToken(NUMBER, text, value);
+  }
+
+  // Up to 15 digits the mantissa is an exact double, and so is every
+  // power of ten up to 1e22, so one correctly rounded division gives the
+  // same double parseDouble() would.
+  private Double value(long mantissa, int digits, int decimals) {
+    return digits <= 15 && decimals < POWERS.length
+        ? mantissa / POWERS[Math.max(decimals, 0)]
+        : Double.parseDouble(text(start, current));
+  }
+
+  private void string() {
+    line += skip(SKIP_STRING, false);
+
     if(isAtEnd()) {
-       Lox.error(line, "Unterminated string.");
+       error(line, "Unterminated string.");
        return;
     }
 
     advance();
 
-    String value = source
-        .substring(start + 1, current - 1);
+    if(stringValues == null) {
+      if(source != null) {
+        stringSpans = new long[STRINGS];
+      } else {
+        strings = new String[STRINGS];
+      }
+      stringValues = new String[STRINGS];
+    }
+
+    // The same literal as lately shares its lexeme and value.
+    int hash = hash();
+    int slot = hash & (STRINGS - 1);
+    if(source != null) {
+      if(stringValues[slot] == null || !isSpan(stringSpans[slot])) {
+        String value = unescape(text(start + 1, current - 1));
+        if(value == null) return;
+
+        stringSpans[slot] = span();
+        stringValues[slot] = value;
+      }
+      setToken(STRING, null, stringValues[slot]);
+      return;
+    }
 
-    EscapedString escaped = new EscapedString(value);
+    String text = strings[slot];
+    if(hash != -1 && text != null && text.hashCode() == hash
+        && isPooled(text)) {
+      setToken(STRING, text, stringValues[slot]);
+      return;
+    }
 
-    try {
-        value = escaped.escape();
-    } catch(IllegalArgumentException e) {
-       Lox.error(line, e.getMessage());
-       return;
+    String value = unescape(text(start + 1, current - 1));
+    if(value == null) return;
+
+    String lexeme = text(start, current);
+    if(hash != -1) {
+      strings[slot] = lexeme;
+      stringValues[slot] = value;
+    }
+    setToken(STRING, lexeme, value);
+  }
+
+  // Decodes escapes in one pass, or returns the text itself if it has
+  // none. Returns null after reporting a bad escape.
+  private String unescape(String text) {
+    int escape = text.indexOf('\\');
+    if(escape < 0) return text;
+
+    StringBuilder builder = new StringBuilder(text.length());
+    builder.append(text, 0, escape);
+
+    for(int i = escape; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if(c != '\\') {
+        builder.append(c);
+        continue;
+      }
+
+      if(++i == text.length()) {
+        error(line, "Unterminated escape code.");
+        return null;
+      }
+
+      switch(text.charAt(i)) {
+        case '\\': builder.append('\\'); break;
+        case 'n': builder.append('\n'); break;
+        case 't': builder.append('\t'); break;
+        default:
+          error(line, "Unknown escape code: '\\" + text.charAt(i) + "'");
+          return null;
+      }
     }
 
-    addToken(STRING, value);
+    return builder.toString();
+  }
+
+  void unexpected(char c) {
+    error(line, "Unexpected character: '" + c + "'");
+  }
+
+  // Lexical errors go through here so a Scanner that lexes ahead of the
+  // Parser can hold them back until it gets to them.
+  void error(int line, String message) {
+    Lox.error(line, message);
+  }
+
+  // Moves current past a `run` of chars, one of the SKIP_ kinds, with a
+  // plain loop over the window instead of an advance() for each, and
+  // returns how many newlines it passed. With `slide` the run is dropped
+  // from the window as it goes, for text that needs no lexeme.
+  int skip(int run, boolean slide) {
+    boolean[] skipped = SKIPPED[run];
+    int lines = 0;
+
+    while(load(0)) {
+      char[] buffer = this.buffer;
+      int end = limit;
+      int i = current;
+      if(VECTORS != null) {
+        long vectors = VECTORS.skip(buffer, i, end, run);
+        i = (int)vectors;
+        lines += (int)(vectors >>> 32);
+      }
+      while(i < end) {
+        char c = buffer[i];
+        if(!skipped[c < 128 ? c : 128]) break;
+        if(c == '\n') lines++;
+        i++;
+      }
+
+      current = i;
+      if(slide) start = i;
+      if(i < end) break;
+    }
+
+    return lines;
   }
 
   private boolean isAlpha(char c) {
@@ -201,39 +649,87 @@ class Scanner {
     return isAlpha(c) || isDigit(c);
   }
 
-  private char advance() {
+  char advance() {
     current++;
-    return source.charAt(current - 1);
+    return buffer[current - 1];
   }
 
-  private char peek() {
+  // A char already loaded into the window, like one in [start, current).
+  char charAt(int index) {
+    return buffer[index];
+  }
+
+  char peek() {
     if(isAtEnd()) return '\0';
-    return source.charAt(current);
+    return buffer[current];
   }
 
-  private char peekNext() {
-    if(current + 1 >= source.length()) return '\0';
-    return source.charAt(current + 1);
+  char peekNext() {
+    if(!load(1)) return '\0';
+    return buffer[current + 1];
   }
 
-  private boolean match(char expected) {
+  boolean match(char expected) {
     if(isAtEnd()) return false;
-    if(expected != source.charAt(current)) return false;
+    if(expected != buffer[current]) return false;
 
     current++;
     return true;
   }
 
   private void addToken(TokenType type) {
-    addToken(type, null);
+    setToken(type, null, null);
+  }
+
+  private void setToken(TokenType type, String lexeme, Object literal) {
+    tokenType = type;
+    tokenLexeme = lexeme;
+    tokenLiteral = literal;
+    tokenLine = line;
+  }
+
+  String text(int from, int to) {
+    return new String(buffer, from, to - from);
+  }
+
+  boolean isAtEnd() {
+    return !load(0);
   }
 
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  // Makes sure the char `ahead` places past current is in the buffer,
+  // reading more input if needed. Returns false past the end of input.
+  private boolean load(int ahead) {
+    while(current + ahead >= limit) {
+      if(eof) return false;
+      read();
+    }
+
+    return true;
   }
 
-  private boolean isAtEnd() {
-    return current >= source.length();
+  private void read() {
+    // Everything before the current token has been scanned already.
+    if(start > 0) {
+      System.arraycopy(buffer, start, buffer, 0, limit - start);
+      limit -= start;
+      current -= start;
+      dropped += start;
+      start = 0;
+    }
+
+    if(limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+
+    try {
+      int count = reader.read(buffer, limit, buffer.length - limit);
+      if(count < 0) {
+        eof = true;
+      } else {
+        limit += count;
+      }
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 }
@@ -78,6 +78,7 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    int slot;
   }
 
   static class Block extends Stmt {
@@ -91,6 +92,8 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+    int slots;
+    int[] undeclared;
   }
 
   static class If extends Stmt {
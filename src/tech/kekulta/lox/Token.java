@@ -4,7 +4,8 @@ class Token {
   final TokenType type;
   final String lexeme;
   final Object literal;
-  final int line;
+  // Moved by a Document when lines are added or removed above.
+  int line;
 
   Token(TokenType type, String lexeme, Object literal, int line) {
     this.type = type;
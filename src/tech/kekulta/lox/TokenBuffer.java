@@ -0,0 +1,143 @@
+package tech.kekulta.lox;
+
+import java.util.List;
+
+// A small ring of the tokens around the Parser's position, filled from
+// the Scanner on demand. Tokens are packed into parallel arrays and are
+// only materialized as Token objects for the AST and error messages.
+// Punctuation and keywords share one fixed lexeme per type. A Scanner
+// over a String leaves numbers and strings without one, and it is cut
+// from the String only if asked for.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final String[] LEXEMES = new String[TYPES.length];
+
+    static {
+        for(TokenType type : TYPES) {
+            LEXEMES[type.ordinal()] = fixedLexeme(type);
+        }
+    }
+
+    private static String fixedLexeme(TokenType type) {
+        switch(type) {
+            case LEFT_PAREN: return "(";
+            case RIGHT_PAREN: return ")";
+            case LEFT_BRACE: return "{";
+            case RIGHT_BRACE: return "}";
+            case COMMA: return ",";
+            case DOT: return ".";
+            case SEMICOLON: return ";";
+            case SLASH: return "/";
+            case STAR: return "*";
+            case QUESTION: return "?";
+            case COLON: return ":";
+            case MINUS: return "-";
+            case MINUS_MINUS: return "--";
+            case PLUS: return "+";
+            case PLUS_PLUS: return "++";
+            case BANG: return "!";
+            case BANG_EQUAL: return "!=";
+            case EQUAL: return "=";
+            case EQUAL_EQUAL: return "==";
+            case GREATER: return ">";
+            case GREATER_EQUAL: return ">=";
+            case LESS: return "<";
+            case LESS_EQUAL: return "<=";
+            case EOF: return "";
+
+            case IDENTIFIER:
+            case STRING:
+            case NUMBER:
+                return null;
+
+            default:
+                // Keywords are spelled like their type.
+                return type.name().toLowerCase();
+        }
+    }
+
+    // The Parser looks at most one token back and one ahead, unless it
+    // asks to look further.
+    private static final int CAPACITY = 8;
+
+    private final Scanner scanner;
+    private final int mask;
+    private int size = 0;
+    private final int[] types;
+    private final int[] lines;
+    private final String[] lexemes;
+    private final long[] spans;
+    private final Object[] literals;
+    // Collects every Token handed out, when set.
+    private List<Token> made;
+
+    TokenBuffer(Scanner scanner) {
+        this(scanner, 1);
+    }
+
+    // Keeps up to `lookahead` tokens past the current one loaded.
+    TokenBuffer(Scanner scanner, int lookahead) {
+        int capacity = CAPACITY;
+        while(capacity < lookahead + 2) capacity *= 2;
+
+        this.scanner = scanner;
+        this.mask = capacity - 1;
+        this.types = new int[capacity];
+        this.lines = new int[capacity];
+        this.lexemes = new String[capacity];
+        this.spans = new long[capacity];
+        this.literals = new Object[capacity];
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[slot(index)]];
+    }
+
+    int line(int index) {
+        return lines[slot(index)];
+    }
+
+    Object literal(int index) {
+        return literals[slot(index)];
+    }
+
+    String lexeme(int index) {
+        int slot = slot(index);
+        String fixed = LEXEMES[types[slot]];
+        if(fixed != null) return fixed;
+
+        if(lexemes[slot] == null) {
+            lexemes[slot] = scanner.text(spans[slot]);
+        }
+        return lexemes[slot];
+    }
+
+    Token token(int index) {
+        Token token = new Token(type(index), lexeme(index), literal(index),
+                line(index));
+        if(made != null) made.add(token);
+        return token;
+    }
+
+    void collect(List<Token> made) {
+        this.made = made;
+    }
+
+    // Accessors expect the Parser to have loaded the token already, which
+    // keeps them plain array reads that inline into its checks.
+    private int slot(int index) {
+        return index & mask;
+    }
+
+    void load(int index) {
+        while(index >= size) {
+            int slot = size & mask;
+            types[slot] = scanner.nextToken().ordinal();
+            lines[slot] = scanner.line();
+            lexemes[slot] = scanner.lexeme();
+            if(lexemes[slot] == null) spans[slot] = scanner.span();
+            literals[slot] = scanner.literal();
+            size++;
+        }
+    }
+}
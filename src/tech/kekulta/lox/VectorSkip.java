@@ -0,0 +1,100 @@
+package tech.kekulta.lox;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorSpecies;
+
+// The bulk of Scanner.skip() and MappedScanner.skip() on the Vector API.
+// A whole vector of the window is passed at once while none of its chars
+// can end the run, and the caller's scalar loop finds the exact char that
+// does in the vector it stops at, or takes the tail of the window.
+//
+// Built on its own by `make vector`, as it needs the incubator module to
+// compile, and loaded by Scanner.VECTORS only when the module is in the
+// VM as well.
+//
+// Each compare is tested on its own with anyTrue() and trueCount(). On
+// JDK 17 those compile to a few instructions, while turning a mask into a
+// long boxes it on every vector and C2 can crash folding chains of mask
+// operations into one.
+class VectorSkip implements Scanner.Vectors {
+    private static final VectorSpecies<Short> CHARS =
+        ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES =
+        ByteVector.SPECIES_PREFERRED;
+
+    private static long skipped(int index, int lines) {
+        return ((long)lines << 32) | index;
+    }
+
+    @Override
+    public long skip(char[] buffer, int from, int end, int run) {
+        boolean[] skipped = Scanner.SKIPPED[run];
+        int lines = 0;
+        int i = from;
+        // A run that ends within the first vector can't pass it, so short
+        // ones like the blank space between tokens don't pay for compares.
+        if(i + CHARS.length() > end) return skipped(i, lines);
+        char last = buffer[i + CHARS.length() - 1];
+        if(!skipped[last < 128 ? last : 128]) return skipped(i, lines);
+
+        for(; i <= end - CHARS.length(); i += CHARS.length()) {
+            ShortVector chars = ShortVector.fromCharArray(CHARS, buffer, i);
+            int newlines = chars.eq((short)'\n').trueCount();
+
+            if(run == Scanner.SKIP_BLANK) {
+                // Tabs and carriage returns are left to the scalar loop.
+                int spaces = chars.eq((short)' ').trueCount();
+                if(spaces + newlines != CHARS.length()) break;
+            } else if(run == Scanner.SKIP_STRING) {
+                if(chars.eq((short)'"').anyTrue()) break;
+            } else {
+                if(newlines != 0) break;
+                if(run == Scanner.SKIP_COMMENT
+                        && (chars.eq((short)'/').anyTrue()
+                            || chars.eq((short)'*').anyTrue())) {
+                    break;
+                }
+            }
+
+            lines += newlines;
+        }
+
+        return skipped(i, lines);
+    }
+
+    // Bytes of UTF-8 sequences are never equal to the ASCII chars compared,
+    // so they pass like the non-ASCII chars of skip() above.
+    @Override
+    public long skip(byte[] buffer, int from, int end, int run) {
+        boolean[] skipped = Scanner.SKIPPED[run];
+        int lines = 0;
+        int i = from;
+        if(i + BYTES.length() > end) return skipped(i, lines);
+        int last = buffer[i + BYTES.length() - 1] & 0xff;
+        if(!skipped[last < 128 ? last : 128]) return skipped(i, lines);
+
+        for(; i <= end - BYTES.length(); i += BYTES.length()) {
+            ByteVector bytes = ByteVector.fromArray(BYTES, buffer, i);
+            int newlines = bytes.eq((byte)'\n').trueCount();
+
+            if(run == Scanner.SKIP_BLANK) {
+                int spaces = bytes.eq((byte)' ').trueCount();
+                if(spaces + newlines != BYTES.length()) break;
+            } else if(run == Scanner.SKIP_STRING) {
+                if(bytes.eq((byte)'"').anyTrue()) break;
+            } else {
+                if(newlines != 0) break;
+                if(run == Scanner.SKIP_COMMENT
+                        && (bytes.eq((byte)'/').anyTrue()
+                            || bytes.eq((byte)'*').anyTrue())) {
+                    break;
+                }
+            }
+
+            lines += newlines;
+        }
+
+        return skipped(i, lines);
+    }
+}
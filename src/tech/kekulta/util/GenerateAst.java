@@ -15,13 +15,14 @@ public class GenerateAst {
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
             "Conditional: Expr condition, Expr thenBranch, Expr elseBranch",
-            "Binary     : Expr left, Token operator, Expr right",
+            "Binary     : Expr left, Token operator, Expr right | int state",
             "Grouping   : Expr expression",
             "Literal    : Object value",
-            "Unary      : Token operator, Expr right",
-            "Postfix    : Expr left, Token operator",
-            "Variable   : Token name",
-            "Assign     : Token name, Expr value",
+            "Unary      : Token operator, Expr right | int state",
+            "Postfix    : Expr left, Token operator | int state",
+            "Variable   : Token name | int depth, int slot, Variable outer",
+            "Assign     : Token name, Expr value "
+                        + "| int depth, int slot, Variable outer",
             "Logical    : Expr left, Token operator, Expr right"
         ));
 
@@ -30,8 +31,8 @@ public class GenerateAst {
             "Break      : ",
             "Continue   : ",
             "Print      : Expr expression",
-            "Var        : Token name, Expr initializer",
-            "Block      : List<Stmt> statements",
+            "Var        : Token name, Expr initializer | int slot",
+            "Block      : List<Stmt> statements | int slots, int[] undeclared",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "While      : Expr condition, Stmt body",
             "For        : Stmt initializer, Expr condition, "
@@ -60,8 +61,16 @@ public class GenerateAst {
         for(String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
+            String annotations = "";
 
-            defineType(writer, baseName, className, fields);
+            // Fields after '|' are filled in by later passes (e.g. Resolver)
+            // and are not part of the constructor.
+            if(fields.contains("|")) {
+                annotations = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+
+            defineType(writer, baseName, className, fields, annotations);
         }
 
         writer.println("}");
@@ -84,7 +93,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldsList) {
+            String className, String fieldsList, String annotationsList) {
 
         writer.println("  static class " + className 
                 + " extends " + baseName + " {");
@@ -114,6 +123,11 @@ public class GenerateAst {
         for(String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if(!annotationsList.isEmpty()) {
+            for(String annotation : annotationsList.split(", ")) {
+                writer.println("    " + annotation + ";");
+            }
+        }
         writer.println("  }");
         writer.println();
     }
@@ -0,0 +1,144 @@
+package tech.kekulta.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Makes random edits to each script through a Document and checks after
+// every one that it holds what a fresh Parser makes of the edited text:
+// the same statements, with their tokens on the same lines, and the same
+// syntax errors.
+class DocumentTest {
+    private static final int EDITS = 500;
+    // Typed at random places, so edits open and close blocks, strings and
+    // comments, and add and remove lines.
+    private static final String[] FRAGMENTS = {
+        " ", "\n", "\n\n", ";", "{", "}", "(", ")", "\"", "//", "/*", "*/",
+        "a", "1", "2.5", "var", "var b = a + 1;\n", "print b;\n",
+        "{ var c = 3; print c; }\n", "for (var i = 0; i < 2; i++) {}\n",
+        "if (a) print 1; else print 2;\n", "while (false) {}\n",
+        "\"line\nbreak\"", "// comment\n", "/* block\ncomment */",
+    };
+
+    public static void main(String[] args) throws IOException {
+        // Syntax errors are expected, and compared below instead.
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+
+        int failures = 0;
+        for(String path : args) {
+            String source = new String(Files.readAllBytes(Paths.get(path)),
+                    Charset.defaultCharset());
+            if(!check(path, source, new Random(path.hashCode()))) {
+                failures++;
+            }
+        }
+
+        if(failures > 0) System.exit(1);
+    }
+
+    private static boolean check(String path, String source, Random random) {
+        Document document = new Document(source);
+        StringBuilder text = new StringBuilder(source);
+
+        for(int i = 0; i < EDITS; i++) {
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(4) == 0
+                ? random.nextInt(Math.min(text.length() - offset, 16) + 1)
+                : 0;
+            String inserted = removed > 0 && random.nextBoolean()
+                ? "" : FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+
+            document.edit(offset, removed, inserted);
+            text.replace(offset, offset + removed, inserted);
+
+            String failure = compare(document, text.toString());
+            if(failure != null) {
+                System.out.println(path + ": edit " + i + " (" + offset
+                        + "+" + removed + ", \"" + inserted + "\"): "
+                        + failure);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String compare(Document document, String text) {
+        if(!document.text().equals(text)) return "text differs";
+
+        Lox.hadError = false;
+        Parser parser = new Parser(new Scanner(text));
+        List<Stmt> expected = new ArrayList<Stmt>();
+        while(parser.hasNext()) {
+            expected.add(parser.next());
+        }
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+
+        List<Stmt> statements = document.statements();
+        if(statements.size() != expected.size()) {
+            return statements.size() + " statements, expected "
+                + expected.size();
+        }
+
+        for(int i = 0; i < expected.size(); i++) {
+            String want = dump(expected.get(i));
+            String got = dump(statements.get(i));
+            if(!got.equals(want)) {
+                return "statement " + i + " is " + got + ", expected " + want;
+            }
+        }
+
+        if(document.hadError() != hadError) {
+            return "hadError is " + document.hadError();
+        }
+
+        return null;
+    }
+
+    // Statements that don't parse come out as null.
+    private static String dump(Object node) {
+        StringBuilder builder = new StringBuilder();
+        dump(node, builder);
+        return builder.toString();
+    }
+
+    private static void dump(Object node, StringBuilder builder) {
+        if(node instanceof Token) {
+            Token token = (Token)node;
+            builder.append(token.type).append(" '").append(token.lexeme)
+                .append("' ").append(token.literal)
+                .append(" @").append(token.line);
+        } else if(node instanceof List) {
+            builder.append("[");
+            for(Object element : (List<?>)node) {
+                dump(element, builder);
+                builder.append(", ");
+            }
+            builder.append("]");
+        } else if(node instanceof Stmt || node instanceof Expr) {
+            builder.append(node.getClass().getSimpleName()).append("(");
+            for(Field field : node.getClass().getDeclaredFields()) {
+                if(Modifier.isStatic(field.getModifiers())) continue;
+                builder.append(field.getName()).append("=");
+                try {
+                    dump(field.get(node), builder);
+                } catch(IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+                builder.append(" ");
+            }
+            builder.append(")");
+        } else {
+            builder.append(node);
+        }
+    }
+}